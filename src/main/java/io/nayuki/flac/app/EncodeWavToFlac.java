@@ -33,15 +33,16 @@ import java.nio.charset.StandardCharsets;
 import io.nayuki.flac.common.StreamInfo;
 import io.nayuki.flac.decode.DataFormatException;
 import io.nayuki.flac.encode.BitOutputStream;
+import io.nayuki.flac.encode.CompressionLevel;
 import io.nayuki.flac.encode.FlacEncoder;
 import io.nayuki.flac.encode.RandomAccessFileOutputStream;
-import io.nayuki.flac.encode.SubframeEncoder;
 
 
 /**
  * Encodes an uncompressed PCM WAV file to a FLAC file.
  * Overwrites the output file if it already exists.
- * <p>Usage: java EncodeWavToFlac InFile.wav OutFile.flac</p>
+ * <p>Usage: java EncodeWavToFlac InFile.wav OutFile.flac [Level]</p>
+ * <p>The optional compression level is from 0 (fastest) to 8 (smallest, the default).</p>
  * <p>Requirements on the WAV file:</p>
  * <ul>
  *   <li>Sample depth is 8, 16, 24, or 32 bits (not 4, 17, 23, etc.)</li>
@@ -53,13 +54,14 @@ public final class EncodeWavToFlac {
 	
 	public static void main(String[] args) throws IOException {
 		// Handle command line arguments
-		if (args.length != 2) {
-			System.err.println("Usage: java EncodeWavToFlac InFile.wav OutFile.flac");
+		if (args.length != 2 && args.length != 3) {
+			System.err.println("Usage: java EncodeWavToFlac InFile.wav OutFile.flac [Level]");
 			System.exit(1);
 			return;
 		}
 		File inFile  = new File(args[0]);
 		File outFile = new File(args[1]);
+		CompressionLevel level = args.length == 3 ? CompressionLevel.of(Integer.parseInt(args[2])) : CompressionLevel.DEFAULT;
 		
 		// Read WAV file headers and audio sample data
 		int[][] samples;
@@ -139,7 +141,7 @@ public final class EncodeWavToFlac {
 			info.write(true, out);
 			
 			// Encode all frames
-			new FlacEncoder(info, samples, 4096, SubframeEncoder.SearchOptions.SUBSET_BEST, out);
+			new FlacEncoder(info, samples, level.blockSize, level.searchOptions, out);
 			out.flush();
 			
 			// Rewrite the stream info metadata block, which is
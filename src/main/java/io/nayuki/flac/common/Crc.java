@@ -0,0 +1,126 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.common;
+
+import java.util.Objects;
+
+
+/**
+ * Table-driven computation of the two checksums of FLAC frames: the CRC-8 of the frame
+ * header (polynomial 0x07) and the CRC-16 of the whole frame (polynomial 0x8005), both
+ * most significant bit first with an initial value of zero. The CRC-16 processes
+ * 8 bytes per step (slicing-by-8). Pure functions, thread-safe.
+ */
+public final class Crc {
+	
+	/*---- Static functions ----*/
+	
+	/**
+	 * Returns the CRC-8 after updating the specified CRC with the bytes b[off : off + len].
+	 * @param crc the CRC-8 of the preceding bytes (0 at the start), a uint8 value
+	 * @param b the array of bytes (not {@code null})
+	 * @param off the index of the first byte
+	 * @param len the number of bytes
+	 * @return the updated CRC-8, a uint8 value
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if the range is out of bounds
+	 */
+	public static int update8(int crc, byte[] b, int off, int len) {
+		checkRange(b, off, len);
+		for (int end = off + len; off < end; off++)
+			crc = CRC8_TABLE[(crc ^ b[off]) & 0xFF];
+		return crc;
+	}
+	
+	
+	/**
+	 * Returns the CRC-16 after updating the specified CRC with the bytes b[off : off + len].
+	 * @param crc the CRC-16 of the preceding bytes (0 at the start), a uint16 value
+	 * @param b the array of bytes (not {@code null})
+	 * @param off the index of the first byte
+	 * @param len the number of bytes
+	 * @return the updated CRC-16, a uint16 value
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if the range is out of bounds
+	 */
+	public static int update16(int crc, byte[] b, int off, int len) {
+		checkRange(b, off, len);
+		int end = off + len;
+		for (; end - off >= 8; off += 8) {
+			crc = CRC16_TABLES[7][((crc >>> 8) ^ b[off]) & 0xFF]
+				^ CRC16_TABLES[6][(crc ^ b[off + 1]) & 0xFF]
+				^ CRC16_TABLES[5][b[off + 2] & 0xFF]
+				^ CRC16_TABLES[4][b[off + 3] & 0xFF]
+				^ CRC16_TABLES[3][b[off + 4] & 0xFF]
+				^ CRC16_TABLES[2][b[off + 5] & 0xFF]
+				^ CRC16_TABLES[1][b[off + 6] & 0xFF]
+				^ CRC16_TABLES[0][b[off + 7] & 0xFF];
+		}
+		for (; off < end; off++)
+			crc = ((crc << 8) & 0xFFFF) ^ CRC16_TABLES[0][((crc >>> 8) ^ b[off]) & 0xFF];
+		return crc;
+	}
+	
+	
+	private static void checkRange(byte[] b, int off, int len) {
+		Objects.requireNonNull(b);
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+	}
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	private Crc() {}
+	
+	
+	
+	/*---- Tables ----*/
+	
+	// CRC8_TABLE[x] is the CRC-8 of the single byte x.
+	private static final int[] CRC8_TABLE = new int[256];
+	
+	// CRC16_TABLES[k][x] is the CRC-16 of the byte x followed by k zero bytes.
+	private static final int[][] CRC16_TABLES = new int[8][256];
+	
+	static {
+		for (int x = 0; x < 256; x++) {
+			int crc8 = x;
+			int crc16 = x << 8;
+			for (int i = 0; i < 8; i++) {
+				crc8 = (crc8 << 1) ^ ((crc8 >>> 7) * 0x107);
+				crc16 = (crc16 << 1) ^ ((crc16 >>> 15) * 0x18005);
+			}
+			CRC8_TABLE[x] = crc8;
+			CRC16_TABLES[0][x] = crc16;
+		}
+		for (int k = 1; k < CRC16_TABLES.length; k++) {
+			for (int x = 0; x < 256; x++) {
+				int prev = CRC16_TABLES[k - 1][x];
+				CRC16_TABLES[k][x] = ((prev << 8) & 0xFFFF) ^ CRC16_TABLES[0][prev >>> 8];
+			}
+		}
+	}
+	
+}
@@ -134,8 +134,28 @@ public final class FrameInfo {
 	 * @throws IOException if an I/O exception occurred
 	 */
 	public static FrameInfo readFrame(FlacLowLevelInput in) throws IOException {
+		return readFrame(in, true);
+	}
+	
+	
+	/**
+	 * Reads the next FLAC frame header from the specified input stream like {@link
+	 * #readFrame(FlacLowLevelInput)}, optionally without verifying the CRC-8. If {@code verifyCrc}
+	 * is {@code true}, the CRCs of the stream are reset at the start of the frame (so that the
+	 * caller can verify the CRC-16 at its end); otherwise they are stopped and the CRC-8 is skipped.
+	 * @param in the input stream to read from (not {@code null})
+	 * @param verifyCrc whether to compute and check the CRC-8 of the header
+	 * @return a new frame info object or {@code null}
+	 * @throws NullPointerException if the input stream is {@code null}
+	 * @throws DataFormatException if the input data contains invalid values
+	 * @throws IOException if an I/O exception occurred
+	 */
+	public static FrameInfo readFrame(FlacLowLevelInput in, boolean verifyCrc) throws IOException {
 		// Preliminaries
-		in.resetCrcs();
+		if (verifyCrc)
+			in.resetCrcs();
+		else
+			in.stopCrcs();
 		int temp = in.readByte();
 		if (temp == -1)
 			return null;
@@ -181,9 +201,12 @@ public final class FrameInfo {
 		// Read variable-length data for some fields
 		result.blockSize = decodeBlockSize(blockSizeCode, in);  // Reads 0 to 2 bytes
 		result.sampleRate = decodeSampleRate(sampleRateCode, in);  // Reads 0 to 2 bytes
-		int computedCrc8 = in.getCrc8();
-		if (in.readUint(8) != computedCrc8)
-			throw new DataFormatException("CRC-8 mismatch");
+		if (verifyCrc) {
+			int computedCrc8 = in.getCrc8();
+			if (in.readUint(8) != computedCrc8)
+				throw new DataFormatException("CRC-8 mismatch");
+		} else
+			in.readUint(8);
 		return result;
 	}
 	
@@ -325,6 +348,44 @@ public final class FrameInfo {
 	}
 	
 	
+	/**
+	 * Returns the number of bytes that {@link #writeHeader(BitOutputStream)} would write
+	 * for the current state of this object, without writing or allocating anything.
+	 * @return the size of the frame header in bytes, in the range [6, 16]
+	 * @throws IllegalArgumentException if a field value cannot be encoded
+	 * @throws IllegalStateException if both or neither of the frame index and sample offset are set
+	 */
+	public int getHeaderSize() {
+		int size = 4;  // Sync through reserved bit
+		getSampleDepthCode(sampleDepth);  // Check value
+		if ((frameIndex != -1) == (sampleOffset != -1))
+			throw new IllegalStateException();
+		size += getUtf8IntegerSize(sampleOffset);
+		
+		int blockSizeCode = getBlockSizeCode(blockSize);
+		if (blockSizeCode == 6)
+			size += 1;
+		else if (blockSizeCode == 7)
+			size += 2;
+		
+		int sampleRateCode = getSampleRateCode(sampleRate);
+		if (sampleRateCode == 12)
+			size += 1;
+		else if (sampleRateCode == 13 || sampleRateCode == 14)
+			size += 2;
+		return size + 1;  // CRC-8
+	}
+	
+	
+	// Given a uint36 value, this returns the number of bytes (1 to 7) that writeUtf8Integer() writes for it.
+	private static int getUtf8IntegerSize(long val) {
+		if ((val >>> 36) != 0)
+			throw new IllegalArgumentException();
+		int bitLen = 64 - Long.numberOfLeadingZeros(val);
+		return bitLen <= 7 ? 1 : (bitLen - 2) / 5 + 1;
+	}
+	
+	
 	// Given a uint36 value, this writes 1 to 7 whole bytes to the given output stream.
 	private static void writeUtf8Integer(long val, BitOutputStream out) throws IOException {
 		if ((val >>> 36) != 0)
@@ -0,0 +1,352 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.common;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+
+/**
+ * A growable sequence of the audio samples of one channel, stored in chunks of primitive
+ * values. Samples of at most 16 bits are packed into shorts, so that each sample takes
+ * 2 bytes (or 4 bytes for deeper samples) instead of a boxed integer in a list.
+ * Mutable structure, not thread-safe.
+ * @see StreamInfo#getMd5Hash(SampleBuffer[], int)
+ */
+public abstract class SampleBuffer {
+	
+	/*---- Static functions ----*/
+	
+	/**
+	 * Returns a new empty buffer for samples of the specified bit depth, packed if the depth is at most 16.
+	 * @param sampleDepth the bit depth of the samples to store, in the range 1 to 32 inclusive
+	 * @param capacity the number of samples expected, used as a hint only (not negative)
+	 * @return a new empty sample buffer
+	 * @throws IllegalArgumentException if the depth or capacity is out of range
+	 */
+	public static SampleBuffer create(int sampleDepth, int capacity) {
+		if (sampleDepth < 1 || sampleDepth > 32 || capacity < 0)
+			throw new IllegalArgumentException();
+		int numChunks = Math.max((int)(((long)capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS), 1);
+		return sampleDepth <= 16 ? new PackedSampleBuffer(numChunks) : new WideSampleBuffer(numChunks);
+	}
+	
+	
+	/**
+	 * Returns a new buffer for samples of the specified bit depth, holding a copy of the specified values.
+	 * @param sampleDepth the bit depth of the samples to store, in the range 1 to 32 inclusive
+	 * @param values the samples to store (not {@code null}), each a signed 'sampleDepth'-bit integer
+	 * @return a new sample buffer
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IllegalArgumentException if the depth is out of range
+	 */
+	public static SampleBuffer of(int sampleDepth, int... values) {
+		SampleBuffer result = create(sampleDepth, values.length);
+		result.addAll(values, 0, values.length);
+		return result;
+	}
+	
+	
+	
+	/*---- Fields ----*/
+	
+	// Samples are kept in chunks of this fixed size, so growing never copies the samples themselves.
+	static final int CHUNK_BITS = 16;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	// The number of samples stored, in the range [0, numChunks * CHUNK_SIZE].
+	int size;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Only the two nested variants exist.
+	private SampleBuffer() {
+		size = 0;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	/**
+	 * Returns the number of samples stored.
+	 * @return the number of samples stored
+	 */
+	public int size() {
+		return size;
+	}
+	
+	
+	/**
+	 * Returns the sample at the specified index.
+	 * @param index the index of the sample, in the range [0, size)
+	 * @return the sample value
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	public abstract int get(int index);
+	
+	
+	/**
+	 * Replaces the sample at the specified index.
+	 * @param index the index of the sample, in the range [0, size)
+	 * @param val the new sample value, which must fit the sample depth of this buffer
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	public abstract void set(int index, int val);
+	
+	
+	/**
+	 * Appends the specified sample to the end of this buffer.
+	 * @param val the sample value, which must fit the sample depth of this buffer
+	 */
+	public void add(int val) {
+		ensureCapacity(size + 1);
+		size++;
+		set(size - 1, val);
+	}
+	
+	
+	/**
+	 * Appends the samples src[off : off + len] to the end of this buffer.
+	 * @param src the samples to append (not {@code null}), each fitting the sample depth of this buffer
+	 * @param off the index of the first sample to append
+	 * @param len the number of samples to append
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if the range is out of bounds
+	 */
+	public void addAll(int[] src, int off, int len) {
+		Objects.requireNonNull(src);
+		if (off < 0 || len < 0 || len > src.length - off)
+			throw new IndexOutOfBoundsException();
+		ensureCapacity(size + len);
+		int pos = size;
+		size += len;
+		while (len > 0) {
+			int n = Math.min(CHUNK_SIZE - (pos & CHUNK_MASK), len);
+			fromArray(src, off, pos, n);
+			off += n;
+			pos += n;
+			len -= n;
+		}
+	}
+	
+	
+	/**
+	 * Copies the samples [pos : pos + len] of this buffer to dest[off : off + len].
+	 * @param pos the index of the first sample to copy
+	 * @param dest the array to copy to (not {@code null})
+	 * @param off the index in the array to copy to
+	 * @param len the number of samples to copy
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if either range is out of bounds
+	 */
+	public void copyTo(int pos, int[] dest, int off, int len) {
+		checkRange(pos, dest.length, off, len);
+		while (len > 0) {
+			int n = Math.min(CHUNK_SIZE - (pos & CHUNK_MASK), len);
+			toArray(pos, dest, off, n);
+			off += n;
+			pos += n;
+			len -= n;
+		}
+	}
+	
+	
+	/**
+	 * Copies the samples [pos : pos + len] of this buffer to dest[off : off + len], widened to long.
+	 * @param pos the index of the first sample to copy
+	 * @param dest the array to copy to (not {@code null})
+	 * @param off the index in the array to copy to
+	 * @param len the number of samples to copy
+	 * @throws NullPointerException if the array is {@code null}
+	 * @throws IndexOutOfBoundsException if either range is out of bounds
+	 */
+	public void copyTo(int pos, long[] dest, int off, int len) {
+		checkRange(pos, dest.length, off, len);
+		while (len > 0) {
+			int n = Math.min(CHUNK_SIZE - (pos & CHUNK_MASK), len);
+			toArray(pos, dest, off, n);
+			off += n;
+			pos += n;
+			len -= n;
+		}
+	}
+	
+	
+	/**
+	 * Returns a new array holding all the samples of this buffer.
+	 * @return a new array of length size()
+	 */
+	public int[] toArray() {
+		int[] result = new int[size];
+		copyTo(0, result, 0, size);
+		return result;
+	}
+	
+	
+	private void checkRange(int pos, int destLen, int off, int len) {
+		if (pos < 0 || off < 0 || len < 0 || len > size - pos || len > destLen - off)
+			throw new IndexOutOfBoundsException();
+	}
+	
+	
+	final void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException();
+	}
+	
+	
+	// Makes room for at least the given number of samples, without changing the size.
+	abstract void ensureCapacity(int capacity);
+	
+	// Copies src[off : off + len] to the samples [pos : pos + len], which lie within one chunk.
+	abstract void fromArray(int[] src, int off, int pos, int len);
+	
+	// Copies the samples [pos : pos + len], which lie within one chunk, to dest[off : off + len].
+	abstract void toArray(int pos, int[] dest, int off, int len);
+	
+	abstract void toArray(int pos, long[] dest, int off, int len);
+	
+	
+	
+	/*---- Variants ----*/
+	
+	// Stores samples of up to 16 bits, 2 bytes per sample.
+	private static final class PackedSampleBuffer extends SampleBuffer {
+		
+		private short[][] chunks;
+		private int numChunks;
+		
+		
+		PackedSampleBuffer(int initialChunks) {
+			chunks = new short[initialChunks][];
+			numChunks = 0;
+		}
+		
+		
+		public int get(int index) {
+			checkIndex(index);
+			return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+		}
+		
+		
+		public void set(int index, int val) {
+			checkIndex(index);
+			chunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = (short)val;
+		}
+		
+		
+		void ensureCapacity(int capacity) {
+			if (capacity < 0)
+				throw new IllegalStateException("Too many samples");
+			while ((long)numChunks * CHUNK_SIZE < capacity) {
+				if (numChunks == chunks.length)
+					chunks = Arrays.copyOf(chunks, chunks.length * 2);
+				chunks[numChunks] = new short[CHUNK_SIZE];
+				numChunks++;
+			}
+		}
+		
+		
+		void fromArray(int[] src, int off, int pos, int len) {
+			short[] chunk = chunks[pos >>> CHUNK_BITS];
+			for (int i = 0, j = pos & CHUNK_MASK; i < len; i++, j++)
+				chunk[j] = (short)src[off + i];
+		}
+		
+		
+		void toArray(int pos, int[] dest, int off, int len) {
+			short[] chunk = chunks[pos >>> CHUNK_BITS];
+			for (int i = 0, j = pos & CHUNK_MASK; i < len; i++, j++)
+				dest[off + i] = chunk[j];
+		}
+		
+		
+		void toArray(int pos, long[] dest, int off, int len) {
+			short[] chunk = chunks[pos >>> CHUNK_BITS];
+			for (int i = 0, j = pos & CHUNK_MASK; i < len; i++, j++)
+				dest[off + i] = chunk[j];
+		}
+		
+	}
+	
+	
+	// Stores samples of up to 32 bits, 4 bytes per sample.
+	private static final class WideSampleBuffer extends SampleBuffer {
+		
+		private int[][] chunks;
+		private int numChunks;
+		
+		
+		WideSampleBuffer(int initialChunks) {
+			chunks = new int[initialChunks][];
+			numChunks = 0;
+		}
+		
+		
+		public int get(int index) {
+			checkIndex(index);
+			return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+		}
+		
+		
+		public void set(int index, int val) {
+			checkIndex(index);
+			chunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = val;
+		}
+		
+		
+		void ensureCapacity(int capacity) {
+			if (capacity < 0)
+				throw new IllegalStateException("Too many samples");
+			while ((long)numChunks * CHUNK_SIZE < capacity) {
+				if (numChunks == chunks.length)
+					chunks = Arrays.copyOf(chunks, chunks.length * 2);
+				chunks[numChunks] = new int[CHUNK_SIZE];
+				numChunks++;
+			}
+		}
+		
+		
+		void fromArray(int[] src, int off, int pos, int len) {
+			System.arraycopy(src, off, chunks[pos >>> CHUNK_BITS], pos & CHUNK_MASK, len);
+		}
+		
+		
+		void toArray(int pos, int[] dest, int off, int len) {
+			System.arraycopy(chunks[pos >>> CHUNK_BITS], pos & CHUNK_MASK, dest, off, len);
+		}
+		
+		
+		void toArray(int pos, long[] dest, int off, int len) {
+			int[] chunk = chunks[pos >>> CHUNK_BITS];
+			for (int i = 0, j = pos & CHUNK_MASK; i < len; i++, j++)
+				dest[off + i] = chunk[j];
+		}
+		
+	}
+	
+}
@@ -24,7 +24,6 @@ package io.nayuki.flac.common;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import java.util.Objects;
 import io.nayuki.flac.decode.ByteArrayFlacInput;
 import io.nayuki.flac.decode.DataFormatException;
@@ -282,11 +281,6 @@ public final class StreamInfo {
 	
 	/*---- Static functions ----*/
 
-	@FunctionalInterface
-	private interface Accessor {
-		int apply(int ch, int i);
-	}
-
 	/**
 	 * Computes and returns the MD5 hash of the specified raw audio sample data at the specified
 	 * bit depth. Currently, the bit depth must be a multiple of 8, between 8 and 32 inclusive.
@@ -307,47 +301,122 @@ public final class StreamInfo {
 		if (depth < 0 || depth > 32 || depth % 8 != 0)
 			throw new IllegalArgumentException("Unsupported bit depth");
 		
-		// Create hasher
-		MessageDigest hasher;
-		try {  // Guaranteed available by the Java Cryptography Architecture
-			hasher = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new AssertionError(e);
+		// Convert samples to a stream of bytes, compute hash
+		MessageDigest hasher = newMd5Hasher();
+		update(hasher, samples, 0, samples[0].length, depth);
+		return hasher.digest();
+	}
+	
+	
+	/**
+	 * Computes and returns the MD5 hash of the specified range of raw audio sample data at the
+	 * specified bit depth, the same way as {@link #getMd5Hash(int[][], int)} does for whole arrays.
+	 * @param samples the audio samples to hash, where
+	 * each subarray is a channel (all not {@code null})
+	 * @param off the index of the first sample of each channel to hash
+	 * @param len the number of samples of each channel to hash
+	 * @param depth the bit depth of the audio samples
+	 * (i.e. each sample value is a signed 'depth'-bit integer)
+	 * @return a new 16-byte array representing the MD5 hash of the audio data
+	 * @throws NullPointerException if the array or any subarray is {@code null}
+	 * @throws IndexOutOfBoundsException if the range is out of bounds for some subarray
+	 * @throws IllegalArgumentException if the bit depth is unsupported
+	 */
+	public static byte[] getMd5Hash(int[][] samples, int off, int len, int depth) {
+		// Check arguments
+		Objects.requireNonNull(samples);
+		for (int[] chanSamples : samples) {
+			Objects.requireNonNull(chanSamples);
+			if (off < 0 || len < 0 || len > chanSamples.length - off)
+				throw new IndexOutOfBoundsException();
 		}
+		if (depth < 0 || depth > 32 || depth % 8 != 0)
+			throw new IllegalArgumentException("Unsupported bit depth");
 		
-		// Convert samples to a stream of bytes, compute hash
-		Accessor data = (int ch, int i) -> samples[ch][i];
-		return getHash(data, depth, samples.length, samples[0].length);
+		MessageDigest hasher = newMd5Hasher();
+		update(hasher, samples, off, len, depth);
+		return hasher.digest();
 	}
-
-	public static byte[] getMd5Hash(List<Integer>[] samples, int depth) {
+	
+	
+	/**
+	 * Computes and returns the MD5 hash of the specified raw audio sample data at the specified
+	 * bit depth, the same way as {@link #getMd5Hash(int[][], int)} does for arrays.
+	 * @param samples the audio samples to hash, where each buffer is a channel
+	 * (all not {@code null}, all of the same size)
+	 * @param depth the bit depth of the audio samples
+	 * (i.e. each sample value is a signed 'depth'-bit integer)
+	 * @return a new 16-byte array representing the MD5 hash of the audio data
+	 * @throws NullPointerException if the array or any buffer is {@code null}
+	 * @throws IllegalArgumentException if the bit depth is unsupported
+	 */
+	public static byte[] getMd5Hash(SampleBuffer[] samples, int depth) {
 		// Check arguments
 		Objects.requireNonNull(samples);
-		for (List<Integer> chanSamples : samples)
-			assert (!chanSamples.isEmpty());
-
-		Accessor data = (int ch, int i) -> samples[ch].get(i);
-		return getHash(data, depth, samples.length, samples[0].size());
+		for (SampleBuffer chanSamples : samples)
+			Objects.requireNonNull(chanSamples);
+		if (depth < 0 || depth > 32 || depth % 8 != 0)
+			throw new IllegalArgumentException("Unsupported bit depth");
+		
+		// Hash block by block, copied out of the buffers
+		MessageDigest hasher = newMd5Hasher();
+		int numSamples = samples[0].size();
+		int[][] block = new int[samples.length][Math.min(numSamples, 4096)];
+		for (int pos = 0; pos < numSamples; ) {
+			int n = Math.min(block[0].length, numSamples - pos);
+			for (int ch = 0; ch < samples.length; ch++)
+				samples[ch].copyTo(pos, block[ch], 0, n);
+			update(hasher, block, 0, n, depth);
+			pos += n;
+		}
+		return hasher.digest();
 	}
-
-	private static byte[] getHash(Accessor samples, int depth, int numChannels, int numSamples) {
+	
+	
+	/**
+	 * Feeds the specified block of raw audio sample data to the specified MD5 hasher, serialized the
+	 * same way as by {@link #getMd5Hash(int[][], int)}. Hashing all the consecutive blocks of a stream
+	 * this way and then finishing the hasher yields the same hash as hashing the whole stream at once.
+	 * @param hasher the MD5 hasher to update (not {@code null})
+	 * @param samples the audio samples to hash, where
+	 * each subarray is a channel (all not {@code null})
+	 * @param len the number of samples taken from the start of each channel
+	 * @param depth the bit depth of the audio samples
+	 * (i.e. each sample value is a signed 'depth'-bit integer)
+	 * @throws NullPointerException if the hasher, the array or any subarray is {@code null}
+	 * @throws IllegalArgumentException if the bit depth is unsupported
+	 */
+	public static void updateMd5Hash(MessageDigest hasher, int[][] samples, int len, int depth) {
+		// Check arguments
+		Objects.requireNonNull(hasher);
+		Objects.requireNonNull(samples);
+		for (int[] chanSamples : samples)
+			Objects.requireNonNull(chanSamples);
 		if (depth < 0 || depth > 32 || depth % 8 != 0)
 			throw new IllegalArgumentException("Unsupported bit depth");
-
-		// Create hasher
-		MessageDigest hasher;
+		
+		update(hasher, samples, 0, len, depth);
+	}
+	
+	
+	private static MessageDigest newMd5Hasher() {
 		try {  // Guaranteed available by the Java Cryptography Architecture
-			hasher = MessageDigest.getInstance("MD5");
+			return MessageDigest.getInstance("MD5");
 		} catch (NoSuchAlgorithmException e) {
 			throw new AssertionError(e);
 		}
-
-		// Convert samples to a stream of bytes, compute hash
+	}
+	
+	
+	// Converts samples[ : ][off : off + numSamples] to a stream of little-endian
+	// bytes (with channel interleaving), feeding them to the hasher.
+	private static void update(MessageDigest hasher, int[][] samples, int off, int numSamples, int depth) {
+		int numChannels = samples.length;
 		int numBytes = depth / 8;
 		byte[] buf = new byte[numChannels * numBytes * Math.min(numSamples, 2048)];
 		for (int i = 0, l = 0; i < numSamples; i++) {
 			for (int j = 0; j < numChannels; j++) {
-				int val = samples.apply(j, i);
+				int val = samples[j][off + i];
 				for (int k = 0; k < numBytes; k++, l++)
 					buf[l] = (byte)(val >>> (k << 3));
 			}
@@ -356,7 +425,6 @@ public final class StreamInfo {
 				l = 0;
 			}
 		}
-		return hasher.digest();
 	}
-
+	
 }
@@ -23,8 +23,10 @@ package io.nayuki.flac.decode;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
+import io.nayuki.flac.common.Crc;
 
 
 /**
@@ -37,6 +39,7 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	// Data from the underlying stream is first stored into this byte buffer before further processing.
 	private long byteBufferStartPos;
 	private byte[] byteBuffer;
+	private ByteBuffer byteBufferView;  // Big-endian view of byteBuffer, for reading 8 bytes at once
 	private int byteBufferLen;
 	private int byteBufferIndex;
 	
@@ -45,10 +48,12 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	private long bitBuffer;  // Only the bottom bitBufferLen bits are valid; the top bits are garbage.
 	private int bitBufferLen;  // Always in the range [0, 64].
 	
-	// Current state of the CRC calculations.
+	// Current state of the CRC calculations, which are brought up to date lazily. Each CRC covers the bytes
+	// before its start index; the CRC-8 is only kept for short spans (frame headers), see readUnderlying().
 	private int crc8;  // Always a uint8 value.
 	private int crc16;  // Always a uint16 value.
-	private int crcStartIndex;  // In the range [0, byteBufferLen], unless byteBufferLen = -1.
+	private int crc8StartIndex;  // In the range [0, byteBufferLen], or -1 if the span got too long.
+	private int crc16StartIndex;  // In the range [0, byteBufferLen] unless byteBufferLen = -1, or -1 if stopped.
 	
 	
 	
@@ -56,6 +61,7 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	
 	public AbstractFlacLowLevelInput() {
 		byteBuffer = new byte[4096];
+		byteBufferView = ByteBuffer.wrap(byteBuffer);
 		positionChanged(0);
 	}
 	
@@ -79,7 +85,6 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	// it must call this method to flush the buffers of upcoming data.
 	protected void positionChanged(long pos) {
 		byteBufferStartPos = pos;
-		Arrays.fill(byteBuffer, (byte)0);  // Defensive clearing, should have no visible effect outside of debugging
 		byteBufferLen = 0;
 		byteBufferIndex = 0;
 		bitBuffer = 0;  // Defensive clearing, should have no visible effect outside of debugging
@@ -100,14 +105,8 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	public int readUint(int n) throws IOException {
 		if (n < 0 || n > 32)
 			throw new IllegalArgumentException();
-		while (bitBufferLen < n) {
-			int b = readUnderlying();
-			if (b == -1)
-				throw new EOFException();
-			bitBuffer = (bitBuffer << 8) | b;
-			bitBufferLen += 8;
-			assert 0 <= bitBufferLen && bitBufferLen <= 64;
-		}
+		if (bitBufferLen < n)
+			fillBitBuffer(n);
 		int result = (int)(bitBuffer >>> (bitBufferLen - n));
 		if (n != 32) {
 			result &= (1 << n) - 1;
@@ -125,6 +124,28 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	}
 	
 	
+	public void readSignedInts(int n, long[] result, int start, int end) throws IOException {
+		if (n < 0 || n > 32)
+			throw new IllegalArgumentException();
+		Objects.requireNonNull(result);
+		if (start < 0 || start > end || end > result.length)
+			throw new IndexOutOfBoundsException();
+		if (n == 0) {
+			Arrays.fill(result, start, end, 0);
+			return;
+		}
+		
+		int shift = 64 - n;
+		for (int i = start; i < end; i++) {
+			if (bitBufferLen < n)
+				fillBitBuffer(n);
+			// Left-align the valid bits, then sign-extend the top n of them
+			result[i] = (bitBuffer << (64 - bitBufferLen)) >> shift;
+			bitBufferLen -= n;
+		}
+	}
+	
+	
 	public void readRiceSignedInts(int param, long[] result, int start, int end) throws IOException {
 		if (param < 0 || param > 31)
 			throw new IllegalArgumentException();
@@ -136,9 +157,9 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 			middle:
 			while (start <= end - RICE_DECODING_CHUNK) {
 				if (bitBufferLen < RICE_DECODING_CHUNK * RICE_DECODING_TABLE_BITS) {
-					if (byteBufferIndex <= byteBufferLen - 8) {
-						fillBitBuffer();
-					} else
+					if (byteBufferIndex <= byteBufferLen - 8)
+						fillBitBuffer(RICE_DECODING_CHUNK * RICE_DECODING_TABLE_BITS);
+					else
 						break;
 				}
 				for (int i = 0; i < RICE_DECODING_CHUNK; i++, start++) {
@@ -155,16 +176,28 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 			// Slow decoder
 			if (start >= end)
 				break;
+			// Count the unary zeros a whole bit buffer at a time
 			long val = 0;
-			while (readUint(1) == 0) {
-				if (val >= unaryLimit) {
-					// At this point, the final decoded value would be so large that the result of the
-					// downstream restoreLpc() calculation would not fit in the output sample's bit depth -
-					// hence why we stop early and throw an exception. However, this check is conservative
-					// and doesn't catch all the cases where the post-LPC result wouldn't fit.
-					throw new DataFormatException("Residual value too large");
+			while (true) {
+				if (bitBufferLen == 0)
+					fillBitBuffer(1);
+				int zeros = Long.numberOfLeadingZeros(bitBuffer << (64 - bitBufferLen));  // Garbage bits shifted out
+				if (zeros < bitBufferLen) {
+					val += zeros;
+					bitBufferLen -= zeros + 1;
+					break;
 				}
-				val++;
+				val += bitBufferLen;
+				bitBufferLen = 0;
+				if (val > unaryLimit)
+					break;
+			}
+			if (val > unaryLimit) {
+				// At this point, the final decoded value would be so large that the result of the
+				// downstream restoreLpc() calculation would not fit in the output sample's bit depth -
+				// hence why we stop early and throw an exception. However, this check is conservative
+				// and doesn't catch all the cases where the post-LPC result wouldn't fit.
+				throw new DataFormatException("Residual value too large");
 			}
 			val = (val << param) | readUint(param);  // Note: Long masking unnecessary because param <= 31
 			assert (val >>> 53) == 0;  // Must fit a uint53 by design due to unaryLimit
@@ -176,24 +209,32 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	}
 	
 	
-	// Appends at least 8 bits to the bit buffer, or throws EOFException.
-	private void fillBitBuffer() throws IOException {
+	// Appends whole bytes to the bit buffer until it has at least n bits (bitBufferLen < n <= 57), or throws
+	// EOFException. If the byte buffer has 8 bytes left, they are read as one word, filling the bit buffer to
+	// at least 57 bits. Otherwise the bytes are appended one at a time, only as many as needed; so whole bytes
+	// in the bit buffer always come from the current byte buffer after a call to a read*() method returns.
+	private void fillBitBuffer(int n) throws IOException {
+		assert bitBufferLen < n && n <= 57;
 		int i = byteBufferIndex;
-		int n = Math.min((64 - bitBufferLen) >>> 3, byteBufferLen - i);
-		byte[] b = byteBuffer;
-		if (n > 0) {
-			for (int j = 0; j < n; j++, i++)
-				bitBuffer = (bitBuffer << 8) | (b[i] & 0xFF);
-			bitBufferLen += n << 3;
-		} else if (bitBufferLen <= 56) {
-			int temp = readUnderlying();
-			if (temp == -1)
-				throw new EOFException();
-			bitBuffer = (bitBuffer << 8) | temp;
-			bitBufferLen += 8;
+		if (i <= byteBufferLen - 8) {
+			long word = byteBufferView.getLong(i);
+			int bytes = (64 - bitBufferLen) >>> 3;
+			if (bytes == 8)
+				bitBuffer = word;
+			else
+				bitBuffer = (bitBuffer << (bytes << 3)) | (word >>> (64 - (bytes << 3)));
+			bitBufferLen += bytes << 3;
+			byteBufferIndex = i + bytes;
+		} else {
+			do {
+				int b = readUnderlying();
+				if (b == -1)
+					throw new EOFException();
+				bitBuffer = (bitBuffer << 8) | b;
+				bitBufferLen += 8;
+			} while (bitBufferLen < n);
 		}
-		assert 8 <= bitBufferLen && bitBufferLen <= 64;
-		byteBufferIndex += n;
+		assert n <= bitBufferLen && bitBufferLen <= 64;
 	}
 	
 	
@@ -213,23 +254,52 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	public void readFully(byte[] b) throws IOException {
 		Objects.requireNonNull(b);
 		checkByteAligned();
-		for (int i = 0; i < b.length; i++)
+		int i = 0;
+		for (; i < b.length && bitBufferLen > 0; i++)  // Whole bytes already in the bit buffer
 			b[i] = (byte)readUint(8);
+		while (i < b.length) {
+			if (byteBufferIndex >= byteBufferLen) {  // Refill the byte buffer
+				int temp = readUnderlying();
+				if (temp == -1)
+					throw new EOFException();
+				b[i] = (byte)temp;
+				i++;
+			} else {  // Copy in bulk
+				int n = Math.min(b.length - i, byteBufferLen - byteBufferIndex);
+				System.arraycopy(byteBuffer, byteBufferIndex, b, i, n);
+				byteBufferIndex += n;
+				i += n;
+			}
+		}
 	}
 	
 	
 	// Reads a byte from the byte buffer (if available) or from the underlying stream, returning either a uint8 or -1.
+	// When the byte buffer is refilled, the CRC-16 takes in the rest of the old data, and the bytes not yet in the
+	// CRC-8 are moved to the front of the buffer if there are at most CRC8_MAX_SPAN of them (else it is dropped).
 	private int readUnderlying() throws IOException {
 		if (byteBufferIndex >= byteBufferLen) {
 			if (byteBufferLen == -1)
 				return -1;
-			byteBufferStartPos += byteBufferLen;
-			updateCrcs(0);
-			byteBufferLen = readUnderlying(byteBuffer, 0, byteBuffer.length);
-			crcStartIndex = 0;
-			if (byteBufferLen <= 0)
+			if (crc16StartIndex != -1)
+				crc16 = Crc.update16(crc16, byteBuffer, crc16StartIndex, byteBufferLen - crc16StartIndex);
+			int keep = 0;
+			if (crc8StartIndex != -1 && byteBufferLen - crc8StartIndex <= CRC8_MAX_SPAN) {
+				keep = byteBufferLen - crc8StartIndex;
+				System.arraycopy(byteBuffer, crc8StartIndex, byteBuffer, 0, keep);
+				crc8StartIndex = 0;
+			} else
+				crc8StartIndex = -1;
+			byteBufferStartPos += byteBufferLen - keep;
+			byteBufferIndex = keep;
+			if (crc16StartIndex != -1)
+				crc16StartIndex = keep;
+			int n = readUnderlying(byteBuffer, keep, byteBuffer.length - keep);
+			if (n <= 0) {
+				byteBufferLen = n == -1 ? -1 : keep;
 				return -1;
-			byteBufferIndex = 0;
+			}
+			byteBufferLen = keep + n;
 		}
 		assert byteBufferIndex < byteBufferLen;
 		int temp = byteBuffer[byteBufferIndex] & 0xFF;
@@ -247,15 +317,26 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	
 	public void resetCrcs() {
 		checkByteAligned();
-		crcStartIndex = byteBufferIndex - bitBufferLen / 8;
+		crc8StartIndex = byteBufferIndex - bitBufferLen / 8;
+		crc16StartIndex = crc8StartIndex;
 		crc8 = 0;
 		crc16 = 0;
 	}
 	
 	
+	public void stopCrcs() {
+		crc8StartIndex = -1;
+		crc16StartIndex = -1;
+	}
+	
+	
 	public int getCrc8() {
 		checkByteAligned();
-		updateCrcs(bitBufferLen / 8);
+		if (crc8StartIndex == -1)
+			throw new IllegalStateException("CRC-8 span too long");
+		int end = byteBufferIndex - bitBufferLen / 8;
+		crc8 = Crc.update8(crc8, byteBuffer, crc8StartIndex, end - crc8StartIndex);
+		crc8StartIndex = end;
 		if ((crc8 >>> 8) != 0)
 			throw new AssertionError();
 		return crc8;
@@ -264,40 +345,32 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	
 	public int getCrc16() {
 		checkByteAligned();
-		updateCrcs(bitBufferLen / 8);
+		if (crc16StartIndex == -1)
+			throw new IllegalStateException("CRC-16 stopped");
+		int end = byteBufferIndex - bitBufferLen / 8;
+		crc16 = Crc.update16(crc16, byteBuffer, crc16StartIndex, end - crc16StartIndex);
+		crc16StartIndex = end;
 		if ((crc16 >>> 16) != 0)
 			throw new AssertionError();
 		return crc16;
 	}
 	
 	
-	// Updates the two CRC values with data in byteBuffer[crcStartIndex : byteBufferIndex - unusedTrailingBytes].
-	private void updateCrcs(int unusedTrailingBytes) {
-		int end = byteBufferIndex - unusedTrailingBytes;
-		for (int i = crcStartIndex; i < end; i++) {
-			int b = byteBuffer[i] & 0xFF;
-			crc8 = CRC8_TABLE[crc8 ^ b] & 0xFF;
-			crc16 = CRC16_TABLE[(crc16 >>> 8) ^ b] ^ ((crc16 & 0xFF) << 8);
-			assert (crc8 >>> 8) == 0;
-			assert (crc16 >>> 16) == 0;
-		}
-		crcStartIndex = end;
-	}
-	
-	
 	/*-- Miscellaneous --*/
 	
 	// Note: This class only uses memory and has no native resources. It's not strictly necessary to
 	// call the implementation of AbstractFlacLowLevelInput.close() here, but it's a good habit anyway.
 	public void close() throws IOException {
 		byteBuffer = null;
+		byteBufferView = null;
 		byteBufferLen = -1;
 		byteBufferIndex = -1;
 		bitBuffer = 0;
 		bitBufferLen = -1;
 		crc8 = -1;
 		crc16 = -1;
-		crcStartIndex = -1;
+		crc8StartIndex = -1;
+		crc16StartIndex = -1;
 	}
 	
 	
@@ -335,20 +408,7 @@ public abstract class AbstractFlacLowLevelInput implements FlacLowLevelInput {
 	
 	// For CRC calculations
 	
-	private static byte[] CRC8_TABLE  = new byte[256];
-	private static char[] CRC16_TABLE = new char[256];
-	
-	static {
-		for (int i = 0; i < CRC8_TABLE.length; i++) {
-			int temp8 = i;
-			int temp16 = i << 8;
-			for (int j = 0; j < 8; j++) {
-				temp8 = (temp8 << 1) ^ ((temp8 >>> 7) * 0x107);
-				temp16 = (temp16 << 1) ^ ((temp16 >>> 15) * 0x18005);
-			}
-			CRC8_TABLE[i] = (byte)temp8;
-			CRC16_TABLE[i] = (char)temp16;
-		}
-	}
+	// The longest span of bytes since resetCrcs() for which getCrc8() works. A frame header has at most 16 bytes.
+	private static final int CRC8_MAX_SPAN = 64;
 	
 }
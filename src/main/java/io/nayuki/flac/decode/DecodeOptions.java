@@ -0,0 +1,75 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.decode;
+
+
+/**
+ * Selects how much a FrameDecoder (or FlacDecoder) verifies while decoding. The default, {@link #FULL},
+ * checks the CRC-8 of every frame header and the CRC-16 of every frame, and checks every decoded sample
+ * against the sample depth. {@link #TRUSTED} skips all of these, for files that were already verified once
+ * (such as at ingest); corrupt data then yields wrong samples instead of an exception. The structural checks
+ * on the syntax of frames and subframes (reserved codes, orders, block and partition sizes, the range of Rice
+ * codes) are always done, so that decoding never goes out of the bounds of its arrays.
+ * Objects of this class are immutable.
+ * @see FrameDecoder
+ * @see FlacDecoder
+ */
+public final class DecodeOptions {
+	
+	/*---- Fields ----*/
+	
+	// Whether the CRC-8 of each frame header and the CRC-16 of each frame are computed and compared.
+	public final boolean verifyCrcs;
+	
+	// Whether each decoded sample (including the intermediate results of prediction
+	// and stereo decoding) is checked to fit in the sample depth.
+	public final boolean checkSampleRange;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	public DecodeOptions(boolean verifyCrcs, boolean checkSampleRange) {
+		this.verifyCrcs = verifyCrcs;
+		this.checkSampleRange = checkSampleRange;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	public String toString() {
+		return "DecodeOptions(verifyCrcs=" + verifyCrcs + ", checkSampleRange=" + checkSampleRange + ")";
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	// Verifies the CRCs and the sample range. This is the default.
+	public static final DecodeOptions FULL = new DecodeOptions(true, true);
+	
+	// Verifies neither the CRCs nor the sample range.
+	public static final DecodeOptions TRUSTED = new DecodeOptions(false, false);
+	
+}
@@ -22,9 +22,20 @@
 package io.nayuki.flac.decode;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import io.nayuki.flac.common.FrameInfo;
 import io.nayuki.flac.common.SeekTable;
 import io.nayuki.flac.common.StreamInfo;
@@ -52,6 +63,9 @@ import io.nayuki.flac.common.StreamInfo;
  *dec.readAudioBlock(samples, ...);
  *dec.readAudioBlock(samples, ...);
  *
+ *&#x2F;/ Or read all the remaining audio at once, possibly in parallel
+ *dec.readAllAudio(samples, ..., executor, true);
+ *
  *&#x2F;/ Close underlying file stream
  *dec.close();</pre>
  *@see FrameDecoder
@@ -70,6 +84,8 @@ public final class FlacDecoder implements AutoCloseable {
 	
 	private FrameDecoder frameDec;
 	
+	private DecodeOptions options;
+	
 	
 	
 	/*---- Constructors ----*/
@@ -77,19 +93,34 @@ public final class FlacDecoder implements AutoCloseable {
 	// Constructs a new FLAC decoder to read the given file.
 	// This immediately reads the basic header but not metadata blocks.
 	public FlacDecoder(File file) throws IOException {
-		this(new SeekableFileFlacInput(file));
+		this(file, DecodeOptions.FULL);
+	}
+
+	// Constructs a new FLAC decoder to read the given file, verifying the frames as the given options say.
+	// This immediately reads the basic header but not metadata blocks.
+	public FlacDecoder(File file, DecodeOptions options) throws IOException {
+		this(new SeekableFileFlacInput(file), options);
 		Objects.requireNonNull(file);
 	}
 
 	// Constructs a new FLAC decoder to read the given stream.
 	// This immediately reads the basic header but not metadata blocks.
 	public FlacDecoder(BufferedInputStream bufferedData) throws IOException {
-		this(new SeekableInputStreamFlacInput(bufferedData));
+		this(bufferedData, DecodeOptions.FULL);
+	}
+
+	// Constructs a new FLAC decoder to read the given stream, verifying the frames as the given options say.
+	// This immediately reads the basic header but not metadata blocks.
+	public FlacDecoder(BufferedInputStream bufferedData, DecodeOptions options) throws IOException {
+		this(new SeekableInputStreamFlacInput(bufferedData), options);
 	}
 
-	private FlacDecoder(FlacLowLevelInput input) throws IOException {
+	// Constructs a new FLAC decoder to read the given low-level input (such as a MappedFlacInput), which it takes ownership of.
+	// This immediately reads the basic header but not metadata blocks.
+	public FlacDecoder(FlacLowLevelInput input, DecodeOptions options) throws IOException {
 		// Initialize stream
-		this.input = input;
+		this.input = Objects.requireNonNull(input);
+		this.options = Objects.requireNonNull(options);
 
 		// Read basic header
 		if (input.readUint(32) != 0x664C6143)  // Magic string "fLaC"
@@ -132,7 +163,7 @@ public final class FlacDecoder implements AutoCloseable {
 		
 		if (last) {
 			metadataEndPos = input.getPosition();
-			frameDec = new FrameDecoder(input, streamInfo.sampleDepth);
+			frameDec = new FrameDecoder(input, streamInfo.sampleDepth, options);
 		}
 		return new Object[]{type, data};
 	}
@@ -153,6 +184,193 @@ public final class FlacDecoder implements AutoCloseable {
 	}
 	
 	
+	// Reads and decodes all the remaining blocks of audio samples into the given buffer, returning the total
+	// number of samples. If the executor is not null, the remaining audio data is read into memory, split
+	// into ranges of whole frames, and the ranges are decoded in parallel (one FrameDecoder per range);
+	// otherwise the blocks are decoded sequentially. The samples are the same either way. If checkMd5 is true,
+	// the decoded audio is checked against the MD5 hash in the stream info (unless that hash is all zeros),
+	// which requires that no audio blocks were read or sought before this call.
+	// All metadata blocks must be read before starting to read audio blocks.
+	public int readAllAudio(int[][] samples, int off, ExecutorService executor, boolean checkMd5) throws IOException {
+		if (frameDec == null)
+			throw new IllegalStateException("Metadata blocks not fully consumed yet");
+		Objects.requireNonNull(samples);
+		if (checkMd5 && input.getPosition() != metadataEndPos)
+			throw new IllegalStateException("MD5 check needs the whole stream");
+		
+		int total = 0;
+		long remaining = input.getLength() - input.getPosition();
+		if (executor == null || remaining > Integer.MAX_VALUE - 8) {
+			while (true) {
+				int n = readAudioBlock(samples, off + total);
+				if (n == 0)
+					break;
+				total += n;
+			}
+		} else {
+			// Read all the remaining audio data, in case the length is not exact
+			byte[] data = new byte[(int)Math.max(remaining, 0)];
+			input.readFully(data);
+			int b = input.readByte();
+			if (b != -1) {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				bout.write(data);
+				for (; b != -1; b = input.readByte())
+					bout.write(b);
+				data = bout.toByteArray();
+			}
+			
+			try {
+				total = decodeInParallel(data, samples, off, executor);
+			} catch (DataFormatException e) {
+				// Possibly a false sync found between ranges, so decode sequentially for the definitive result
+				total = decodeRange(data, 0, data.length, samples, off, null);
+			}
+		}
+		
+		if (checkMd5 && !Arrays.equals(streamInfo.md5Hash, new byte[16])
+				&& !Arrays.equals(StreamInfo.getMd5Hash(samples, off, total, streamInfo.sampleDepth), streamInfo.md5Hash))
+			throw new DataFormatException("MD5 hash mismatch");
+		return total;
+	}
+	
+	
+	// Splits the given audio data into ranges that start at frame headers found by syncing (the first range starts
+	// at offset 0), decodes them on the executor, and returns the total number of samples. Each range must end exactly
+	// where the next one starts, otherwise a DataFormatException is thrown, as is for corrupt data within a range
+	// and for any failure (other than an interruption) of a range starting at a found header (which might be a false sync).
+	// No range task is running anymore when this method returns or throws.
+	private int decodeInParallel(byte[] data, int[][] samples, int off, ExecutorService executor) throws IOException {
+		if (data.length == 0)
+			return 0;
+		
+		// Aim for a few ranges per thread, so that the threads stay busy until the end
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		if (executor instanceof ForkJoinPool)
+			parallelism = ((ForkJoinPool)executor).getParallelism();
+		int minRangeBytes = Math.max(streamInfo.maxFrameSize, MIN_RANGE_BYTES);
+		int numRanges = (int)Math.max(Math.min((long)parallelism * 8, data.length / minRangeBytes), 1);
+		
+		// Find a frame header near each evenly spaced position, like seekBySyncAndDecode() does
+		ByteArrayFlacInput in = new ByteArrayFlacInput(data);
+		long[] first = getNextFrameOffsets(in, 0);
+		if (first == null || first[1] != 0)
+			throw new DataFormatException("Expected frame header");
+		List<long[]> starts = new ArrayList<>();
+		starts.add(first);
+		for (int k = 1; k < numRanges; k++) {
+			long[] prev = starts.get(starts.size() - 1);
+			long[] next = getNextFrameOffsets(in, Math.max((long)data.length * k / numRanges, prev[1] + 2));
+			if (next == null)
+				break;
+			if (next[1] > prev[1] && next[0] > prev[0])
+				starts.add(next);
+		}
+		
+		// A header from syncing might be false, so its frame must fit in the output buffer at its offset
+		for (long[] start : starts) {
+			long outOff = off + start[0] - first[0];
+			if (outOff + start[2] > samples[0].length)
+				throw new DataFormatException("Frame boundary mismatch");
+		}
+		
+		// Decode the ranges, each into its part of the output buffer. Instead of being cancelled, the tasks
+		// are told to stop and are waited for, so that none writes to the buffer after this method ends.
+		List<Future<Integer>> ranges = new ArrayList<>();
+		AtomicBoolean stop = new AtomicBoolean();
+		CountDownLatch finished = new CountDownLatch(starts.size());
+		try {
+			for (int k = 0; k < starts.size(); k++) {
+				int start = (int)starts.get(k)[1];
+				int end = k + 1 < starts.size() ? (int)starts.get(k + 1)[1] : data.length;
+				int outOff = off + (int)(starts.get(k)[0] - first[0]);
+				ranges.add(executor.submit(() -> {
+					try {
+						return decodeRange(data, start, end, samples, outOff, stop);
+					} finally {
+						finished.countDown();
+					}
+				}));
+			}
+			int total = 0;
+			for (int k = 0; k < ranges.size(); k++) {
+				int outOff = (int)(starts.get(k)[0] - first[0]);
+				int n;
+				try {
+					n = awaitRange(ranges.get(k));
+				} catch (DataFormatException | InterruptedIOException e) {
+					throw e;
+				} catch (RuntimeException | IOException e) {  // E.g. EOFException from a false sync near the end
+					if (k == 0)
+						throw e;
+					throw new DataFormatException("Frame boundary mismatch", e);
+				}
+				if (outOff != total)
+					throw new DataFormatException("Frame boundary mismatch");
+				total += n;
+			}
+			return total;
+		} finally {
+			stop.set(true);
+			for (int k = ranges.size(); k < starts.size(); k++)
+				finished.countDown();  // Never submitted
+			boolean interrupted = false;
+			while (true) {
+				try {
+					finished.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	// Decodes the frames in data[start : end] into the given buffer at the given offset, returning the number of samples.
+	// The range must consist of whole frames; a range ending at data.length extends to the end of stream.
+	// If the stop flag is not null and gets set, the decoding ends early at a frame boundary (with a meaningless result).
+	private int decodeRange(byte[] data, int start, int end, int[][] samples, int off, AtomicBoolean stop) throws IOException {
+		ByteArrayFlacInput in = new ByteArrayFlacInput(data);
+		FrameDecoder dec = new FrameDecoder(in, streamInfo.sampleDepth, options);
+		in.seekTo(start);
+		int total = 0;
+		while (in.getPosition() < end) {
+			if (stop != null && stop.get())
+				return total;
+			FrameInfo frame = dec.readFrame(samples, off + total);
+			if (frame == null)
+				break;
+			total += frame.blockSize;
+		}
+		if (end < data.length && in.getPosition() != end)
+			throw new DataFormatException("Frame boundary mismatch");
+		return total;
+	}
+	
+	
+	// Waits for the given range to be decoded, returning its number of samples.
+	private static int awaitRange(Future<Integer> range) throws IOException {
+		try {
+			return range.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	
 	// Seeks to the given sample position and reads audio samples into the given buffer,
 	// returning the number of samples filled. If audio data is available then the return value
 	// is at least 1; otherwise 0 is returned to indicate the end of stream. Note that the
@@ -230,7 +448,13 @@ public final class FlacDecoder implements AutoCloseable {
 	private long[] getNextFrameOffsets(long filePos) throws IOException {
 		if (filePos < metadataEndPos || filePos > input.getLength())
 			throw new IllegalArgumentException("File position out of bounds");
-		
+		return getNextFrameOffsets(input, filePos);
+	}
+	
+	
+	// Returns a triple (sample offset, position, block size) describing the next frame found in the given
+	// input starting at the given position, or null if no frame is found before the end of stream.
+	private long[] getNextFrameOffsets(FlacLowLevelInput input, long filePos) throws IOException {
 		// Repeatedly search for a sync
 		while (true) {
 			input.seekTo(filePos);
@@ -254,7 +478,7 @@ public final class FlacDecoder implements AutoCloseable {
 			input.seekTo(filePos);
 			try {
 				FrameInfo frame = FrameInfo.readFrame(input);
-				return new long[]{getSampleOffset(frame), filePos};
+				return new long[]{getSampleOffset(frame), filePos, frame.blockSize};
 			} catch (DataFormatException e) {
 				// Advance past the sync and search again
 				filePos += 2;
@@ -287,4 +511,11 @@ public final class FlacDecoder implements AutoCloseable {
 		}
 	}
 	
+	
+	
+	/*---- Constants ----*/
+	
+	// The smallest amount of audio data worth decoding as a separate range in parallel.
+	private static final int MIN_RANGE_BYTES = 1 << 16;
+	
 }
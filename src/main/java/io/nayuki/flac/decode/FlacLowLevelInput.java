@@ -28,6 +28,7 @@ import java.io.IOException;
  * A low-level input stream tailored to the needs of FLAC decoding. An overview of methods includes
  * bit reading, CRC calculation, Rice decoding, and positioning and seeking (partly optional).
  * @see SeekableFileFlacInput
+ * @see MappedFlacInput
  * @see FrameDecoder
  */
 public interface FlacLowLevelInput extends AutoCloseable {
@@ -73,6 +74,15 @@ public interface FlacLowLevelInput extends AutoCloseable {
 	public int readSignedInt(int n) throws IOException;
 	
 	
+	// Reads the next end - start values of the given number of bits (0 <= n <= 32) each as signed integers,
+	// storing them into result[start : end]. This has the same effect as calling readSignedInt(n) for each one,
+	// which is what the default implementation does; AbstractFlacLowLevelInput overrides it with a faster one.
+	public default void readSignedInts(int n, long[] result, int start, int end) throws IOException {
+		for (int i = start; i < end; i++)
+			result[i] = readSignedInt(n);
+	}
+	
+	
 	// Reads and decodes the next batch of Rice-coded signed integers. Note that any Rice-coded integer might read a large
 	// number of bits from the underlying stream (but not in practice because it would be a very inefficient encoding).
 	// Every new value stored into the array is guaranteed to fit into a signed int53 - see FrameDecoder.restoreLpc()
@@ -102,8 +112,16 @@ public interface FlacLowLevelInput extends AutoCloseable {
 	public void resetCrcs();
 	
 	
+	// Stops both CRC calculations until the next call to resetCrcs() or seekTo(), so that the bytes read in between
+	// cost no CRC work. Until then, getCrc8() and getCrc16() may throw IllegalStateException, as they do in
+	// AbstractFlacLowLevelInput. This is only a hint: the default implementation does nothing, so the CRCs go on.
+	public default void stopCrcs() {}
+	
+	
 	// Returns the CRC-8 hash of all the bytes read since the most recent time one of these
 	// events occurred: a call to resetCrcs(), a call to seekTo(), the beginning of stream.
+	// The CRC-8 is meant for frame headers, so an implementation may support only spans of
+	// a limited length (at least 64 bytes), and throw IllegalStateException for longer ones.
 	// Must be called at a byte boundary (i.e. getBitPosition() == 0), otherwise IllegalStateException is thrown.
 	public int getCrc8();
 	
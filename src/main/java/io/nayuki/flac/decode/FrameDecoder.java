@@ -47,6 +47,17 @@ public final class FrameDecoder {
 	// Must be in the range [4, 32].
 	public int expectedSampleDepth;
 	
+	// Can be changed when there is no active call of readFrame().
+	// Must be not null when readFrame() is called. The default is DecodeOptions.FULL.
+	public DecodeOptions options;
+	
+	// Can be changed when there is no active call of readFrame(). If false (the default), the samples restored
+	// by prediction are checked against the sample depth all at once after each subframe, so that the restoration
+	// runs in unchecked loops specialized by order. If true, each sample is checked as soon as it is computed,
+	// in a generic loop. Either way, a sample out of range makes readFrame() throw the same DataFormatException.
+	// Ignored if the options do not check the sample range.
+	public boolean checkEachSample = false;
+	
 	// Temporary arrays to hold two decoded audio channels (a.k.a. subframes). They have int64 range
 	// because the worst case of 32-bit audio encoded in stereo side mode uses signed 33 bits.
 	// The maximum possible block size is either 65536 samples per channel from the
@@ -65,11 +76,19 @@ public final class FrameDecoder {
 	
 	/*---- Constructors ----*/
 	
-	// Constructs a frame decoder that initially uses the given stream.
+	// Constructs a frame decoder that initially uses the given stream and fully verifies the frames.
 	// The caller is responsible for cleaning up the input stream.
 	public FrameDecoder(FlacLowLevelInput in, int expectDepth) {
+		this(in, expectDepth, DecodeOptions.FULL);
+	}
+	
+	
+	// Constructs a frame decoder that initially uses the given stream and options.
+	// The caller is responsible for cleaning up the input stream.
+	public FrameDecoder(FlacLowLevelInput in, int expectDepth, DecodeOptions options) {
 		this.in = in;
 		expectedSampleDepth = expectDepth;
+		this.options = Objects.requireNonNull(options);
 		temp0 = new long[65536];
 		temp1 = new long[65536];
 		currentBlockSize = -1;
@@ -88,12 +107,13 @@ public final class FrameDecoder {
 	public FrameInfo readFrame(int[][] outSamples, int outOffset) throws IOException {
 		// Check field states
 		Objects.requireNonNull(in);
+		Objects.requireNonNull(options);
 		if (currentBlockSize != -1)
 			throw new IllegalStateException("Concurrent call");
 		
 		// Parse the frame header to see if one is available
 		long startByte = in.getPosition();
-		FrameInfo meta = FrameInfo.readFrame(in);
+		FrameInfo meta = FrameInfo.readFrame(in, options.verifyCrcs);
 		if (meta == null)  // EOF occurred cleanly
 			return null;
 		if (meta.sampleDepth != -1 && meta.sampleDepth != expectedSampleDepth)
@@ -115,9 +135,12 @@ public final class FrameDecoder {
 		// Read padding and footer
 		if (in.readUint((8 - in.getBitPosition()) % 8) != 0)
 			throw new DataFormatException("Invalid padding bits");
-		int computedCrc16 = in.getCrc16();
-		if (in.readUint(16) != computedCrc16)
-			throw new DataFormatException("CRC-16 mismatch");
+		if (options.verifyCrcs) {
+			int computedCrc16 = in.getCrc16();
+			if (in.readUint(16) != computedCrc16)
+				throw new DataFormatException("CRC-16 mismatch");
+		} else
+			in.readUint(16);
 		
 		// Handle frame size and miscellaneous
 		long frameSize = in.getPosition() - startByte;
@@ -148,8 +171,13 @@ public final class FrameDecoder {
 			for (int ch = 0; ch < numChannels; ch++) {
 				decodeSubframe(sampleDepth, temp0);
 				int[] outChan = outSamples[ch];
-				for (int i = 0; i < currentBlockSize; i++)
-					outChan[outOffset + i] = checkBitDepth(temp0[i], sampleDepth);
+				if (options.checkSampleRange) {
+					for (int i = 0; i < currentBlockSize; i++)
+						outChan[outOffset + i] = checkBitDepth(temp0[i], sampleDepth);
+				} else {
+					for (int i = 0; i < currentBlockSize; i++)
+						outChan[outOffset + i] = (int)temp0[i];
+				}
 			}
 			
 		} else if (8 <= chanAsgn && chanAsgn <= 10) {
@@ -176,9 +204,16 @@ public final class FrameDecoder {
 			// Copy data from temporary to output arrays, and convert from long to int
 			int[] outLeft  = outSamples[0];
 			int[] outRight = outSamples[1];
-			for (int i = 0; i < currentBlockSize; i++) {
-				outLeft [outOffset + i] = checkBitDepth(temp0[i], sampleDepth);
-				outRight[outOffset + i] = checkBitDepth(temp1[i], sampleDepth);
+			if (options.checkSampleRange) {
+				for (int i = 0; i < currentBlockSize; i++) {
+					outLeft [outOffset + i] = checkBitDepth(temp0[i], sampleDepth);
+					outRight[outOffset + i] = checkBitDepth(temp1[i], sampleDepth);
+				}
+			} else {
+				for (int i = 0; i < currentBlockSize; i++) {
+					outLeft [outOffset + i] = (int)temp0[i];
+					outRight[outOffset + i] = (int)temp1[i];
+				}
 			}
 		} else  // 11 <= channelAssignment <= 15
 			throw new DataFormatException("Reserved channel assignment");
@@ -228,8 +263,7 @@ public final class FrameDecoder {
 		if (type == 0)  // Constant coding
 			Arrays.fill(result, 0, currentBlockSize, in.readSignedInt(sampleDepth));
 		else if (type == 1) {  // Verbatim coding
-			for (int i = 0; i < currentBlockSize; i++)
-				result[i] = in.readSignedInt(sampleDepth);
+			in.readSignedInts(sampleDepth, result, 0, currentBlockSize);
 		} else if (8 <= type && type <= 12)
 			decodeFixedPredictionSubframe(type - 8, sampleDepth, result);
 		else if (32 <= type && type <= 63)
@@ -259,10 +293,15 @@ public final class FrameDecoder {
 			throw new IllegalArgumentException();
 		
 		// Read and compute various values
-		for (int i = 0; i < predOrder; i++)  // Non-Rice-coded warm-up samples
-			result[i] = in.readSignedInt(sampleDepth);
+		in.readSignedInts(sampleDepth, result, 0, predOrder);  // Non-Rice-coded warm-up samples
 		readResiduals(predOrder, result);
-		restoreLpc(result, FIXED_PREDICTION_COEFFICIENTS[predOrder], sampleDepth, 0);
+		if (options.checkSampleRange && checkEachSample)
+			restoreLpc(result, FIXED_PREDICTION_COEFFICIENTS[predOrder], sampleDepth, 0);
+		else {
+			restoreFixed(result, predOrder);
+			if (options.checkSampleRange)
+				checkRestored(result, predOrder, sampleDepth);
+		}
 	}
 	
 	private static final int[][] FIXED_PREDICTION_COEFFICIENTS = {
@@ -288,8 +327,7 @@ public final class FrameDecoder {
 			throw new IllegalArgumentException();
 		
 		// Read non-Rice-coded warm-up samples
-		for (int i = 0; i < lpcOrder; i++)
-			result[i] = in.readSignedInt(sampleDepth);
+		in.readSignedInts(sampleDepth, result, 0, lpcOrder);
 		
 		// Read parameters for the LPC coefficients
 		int precision = in.readUint(4) + 1;
@@ -306,7 +344,13 @@ public final class FrameDecoder {
 		
 		// Perform the main LPC decoding
 		readResiduals(lpcOrder, result);
-		restoreLpc(result, coefs, sampleDepth, shift);
+		if (options.checkSampleRange && checkEachSample)
+			restoreLpc(result, coefs, sampleDepth, shift);
+		else {
+			restoreLpcUnchecked(result, coefs, shift);
+			if (options.checkSampleRange)
+				checkRestored(result, lpcOrder, sampleDepth);
+		}
 	}
 	
 	
@@ -330,7 +374,7 @@ public final class FrameDecoder {
 			throw new IllegalArgumentException();
 		if (shift < 0 || shift > 63)
 			throw new IllegalArgumentException();
-		long lowerBound = (-1) << (sampleDepth - 1);
+		long lowerBound = (-1L) << (sampleDepth - 1);
 		long upperBound = -(lowerBound + 1);
 		
 		for (int i = coefs.length; i < currentBlockSize; i++) {
@@ -348,6 +392,131 @@ public final class FrameDecoder {
 	}
 	
 	
+	// Restores result[order : currentBlockSize] like restoreLpc() with the fixed predictor of the given order,
+	// keeping the previous samples in local variables, but without checking the sample depth.
+	private void restoreFixed(long[] result, int order) {
+		int n = currentBlockSize;
+		switch (order) {
+			case 0:
+				break;
+			case 1: {
+				long a = result[0];
+				for (int i = 1; i < n; i++) {
+					a += result[i];
+					result[i] = a;
+				}
+				break;
+			}
+			case 2: {
+				long a = result[1], b = result[0];
+				for (int i = 2; i < n; i++) {
+					long val = result[i] + 2 * a - b;
+					result[i] = val;
+					b = a;
+					a = val;
+				}
+				break;
+			}
+			case 3: {
+				long a = result[2], b = result[1], c = result[0];
+				for (int i = 3; i < n; i++) {
+					long val = result[i] + 3 * (a - b) + c;
+					result[i] = val;
+					c = b;
+					b = a;
+					a = val;
+				}
+				break;
+			}
+			case 4: {
+				long a = result[3], b = result[2], c = result[1], d = result[0];
+				for (int i = 4; i < n; i++) {
+					long val = result[i] + 4 * (a + c) - 6 * b - d;
+					result[i] = val;
+					d = c;
+					c = b;
+					b = a;
+					a = val;
+				}
+				break;
+			}
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+	
+	
+	// Restores result[coefs.length : currentBlockSize] like restoreLpc(), but without checking the sample depth.
+	// Orders up to 12 (the maximum of the subset format) run in a loop unrolled to 4, 8 or 12 taps, with the
+	// coefficients in local variables and padded with zeros; the samples before the padded order use the generic
+	// loop. On corrupt data the sums can overflow, but the out-of-range value that started it is still stored
+	// in the array, where checkRestored() finds it.
+	private void restoreLpcUnchecked(long[] result, int[] coefs, int shift) {
+		Objects.requireNonNull(result);
+		if (result.length < currentBlockSize)
+			throw new IllegalArgumentException();
+		if (shift < 0 || shift > 63)
+			throw new IllegalArgumentException();
+		int n = currentBlockSize;
+		int order = coefs.length;
+		int taps = order <= 4 ? 4 : order <= 8 ? 8 : order <= 12 ? 12 : n;
+		for (int i = order; i < Math.min(taps, n); i++) {
+			long sum = 0;
+			for (int j = 0; j < order; j++)
+				sum += result[i - 1 - j] * coefs[j];
+			result[i] += sum >> shift;
+		}
+		if (taps >= n)
+			return;
+		
+		long[] c = new long[12];
+		for (int j = 0; j < order; j++)
+			c[j] = coefs[j];
+		long c0 = c[0], c1 = c[1], c2 = c[2], c3 = c[3];
+		if (taps == 4) {
+			for (int i = 4; i < n; i++) {
+				long sum = c0 * result[i - 1] + c1 * result[i - 2] + c2 * result[i - 3] + c3 * result[i - 4];
+				result[i] += sum >> shift;
+			}
+			return;
+		}
+		long c4 = c[4], c5 = c[5], c6 = c[6], c7 = c[7];
+		if (taps == 8) {
+			for (int i = 8; i < n; i++) {
+				long sum = c0 * result[i - 1] + c1 * result[i - 2] + c2 * result[i - 3] + c3 * result[i - 4]
+					+ c4 * result[i - 5] + c5 * result[i - 6] + c6 * result[i - 7] + c7 * result[i - 8];
+				result[i] += sum >> shift;
+			}
+			return;
+		}
+		long c8 = c[8], c9 = c[9], c10 = c[10], c11 = c[11];
+		for (int i = 12; i < n; i++) {
+			long sum = c0 * result[i - 1] + c1 * result[i - 2] + c2 * result[i - 3] + c3 * result[i - 4]
+				+ c4 * result[i - 5] + c5 * result[i - 6] + c6 * result[i - 7] + c7 * result[i - 8]
+				+ c8 * result[i - 9] + c9 * result[i - 10] + c10 * result[i - 11] + c11 * result[i - 12];
+			result[i] += sum >> shift;
+		}
+	}
+	
+	
+	// Checks that every value in result[start : currentBlockSize] fits in a signed sampleDepth-bit integer,
+	// as restoreLpc() does for each value.
+	private void checkRestored(long[] result, int start, int sampleDepth) throws DataFormatException {
+		if (sampleDepth < 1 || sampleDepth > 33)
+			throw new IllegalArgumentException();
+		long min = 0, max = 0;
+		for (int i = start; i < currentBlockSize; i++) {
+			long val = result[i];
+			min = Math.min(val, min);
+			max = Math.max(val, max);
+		}
+		long lowerBound = (-1L) << (sampleDepth - 1);
+		long upperBound = -(lowerBound + 1);
+		if (min < lowerBound || max > upperBound)
+			throw new DataFormatException("Post-LPC result exceeds bit depth");
+	}
+	
+	
 	// Reads metadata and Rice-coded numbers from the input stream, storing them in result[warmup : currentBlockSize].
 	// The stored numbers are guaranteed to fit in a signed int53 - see the explanation in restoreLpc().
 	private void readResiduals(int warmup, long[] result) throws IOException {
@@ -375,8 +544,8 @@ public final class FrameDecoder {
 			int param = in.readUint(paramBits);
 			if (param == escapeParam) {
 				int numBits = in.readUint(5);
-				for (; resultIndex < partEnd; resultIndex++)
-					result[resultIndex] = in.readSignedInt(numBits);
+				in.readSignedInts(numBits, result, resultIndex, partEnd);
+				resultIndex = partEnd;
 			} else {
 				in.readRiceSignedInts(param, result, resultIndex, partEnd);
 				resultIndex = partEnd;
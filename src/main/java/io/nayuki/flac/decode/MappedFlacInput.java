@@ -0,0 +1,124 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.decode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+
+/**
+ * A FLAC input stream based on a memory-mapped {@link FileChannel}. The file is mapped in windows
+ * (the whole file if it is at most 1 GiB), so seeking is only a change of position, without system calls,
+ * unless a read leaves the current window. The length of the file is taken when it is opened.
+ */
+public final class MappedFlacInput extends AbstractFlacLowLevelInput {
+	
+	/*---- Fields ----*/
+	
+	// The underlying file to read from, and the currently mapped window of it.
+	private FileChannel channel;
+	private final long length;
+	private final int windowSize;
+	private MappedByteBuffer window;  // null if nothing is mapped yet
+	private long windowStart;
+	
+	// The file position of the next byte to give to readUnderlying().
+	private long position;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	public MappedFlacInput(File file) throws IOException {
+		this(file, MAX_WINDOW_SIZE);
+	}
+	
+	
+	// Maps windows of at most the given size, a positive multiple of the alignment (for testing).
+	MappedFlacInput(File file, int windowSize) throws IOException {
+		super();
+		Objects.requireNonNull(file);
+		if (windowSize <= 0 || windowSize % WINDOW_ALIGNMENT != 0)
+			throw new IllegalArgumentException("Invalid window size");
+		this.windowSize = windowSize;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		length = channel.size();
+		position = 0;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	public long getLength() {
+		return length;
+	}
+	
+	
+	public void seekTo(long pos) {
+		position = pos;
+		positionChanged(pos);
+	}
+	
+	
+	protected int readUnderlying(byte[] buf, int off, int len) throws IOException {
+		if (position < 0 || position >= length)
+			return -1;
+		if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+			windowStart = position & -WINDOW_ALIGNMENT;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(length - windowStart, windowSize));
+		}
+		int index = (int)(position - windowStart);
+		int n = Math.min(len, window.capacity() - index);
+		((Buffer)window).position(index);  // The cast keeps the Java 8 signature, Buffer.position(int)
+		window.get(buf, off, n);
+		position += n;
+		return n;
+	}
+	
+	
+	// Closes the underlying file channel. The mapped window is released when it is garbage-collected.
+	public void close() throws IOException {
+		if (channel != null) {
+			window = null;
+			channel.close();
+			channel = null;
+			super.close();
+		}
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	private static final int MAX_WINDOW_SIZE = 1 << 30;
+	
+	// Windows start at multiples of this, which is also a multiple of the memory page size on common platforms.
+	private static final int WINDOW_ALIGNMENT = 1 << 16;
+	
+}
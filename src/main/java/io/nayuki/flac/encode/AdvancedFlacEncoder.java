@@ -22,34 +22,102 @@
 package io.nayuki.flac.encode;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import io.nayuki.flac.common.StreamInfo;
 
 
 public final class AdvancedFlacEncoder {
 	
+	/*---- Progress reporting ----*/
+	
+	/**
+	 * Receives the progress of the block size search, which takes most of the encoding time.
+	 */
+	@FunctionalInterface
+	public interface ProgressListener {
+		// Called on the encoding thread with the number of block positions evaluated so far, out of the total.
+		// The first call is (0, total) and the last one is (total, total).
+		void progress(int done, int total);
+	}
+	
+	
+	// Returns a listener that prints the progress and the estimated time remaining to standard error.
+	// Nothing is printed unless this is passed to a constructor explicitly.
+	public static ProgressListener printProgress() {
+		long startTime = System.currentTimeMillis();
+		return (done, total) -> {
+			double progress = (double)done / total;
+			double timeRemain = (System.currentTimeMillis() - startTime) / 1000.0 / progress * (1 - progress);
+			System.err.printf("\rprogress=%.2f%%    timeRemain=%ds", progress * 100, Math.round(timeRemain));
+			if (done == total)
+				System.err.println();
+		};
+	}
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Evaluates the block sizes sequentially, without reporting the progress.
 	public AdvancedFlacEncoder(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts, BitOutputStream out) throws IOException {
+		this(info, samples, baseSize, sizeMultiples, opts, out, null, null);
+	}
+	
+	
+	// Evaluates the block sizes in parallel on the given executor (split by ranges of block positions),
+	// or sequentially if it is null. The frames chosen and written are the same either way.
+	// The progress is reported to the given listener, unless it is null.
+	public AdvancedFlacEncoder(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts, BitOutputStream out,
+			ExecutorService executor, ProgressListener listener) throws IOException {
 		int numSamples = samples[0].length;
+		if (listener == null)
+			listener = (done, total) -> {};
 		
 		// Calculate compressed sizes for many block positions and sizes
 		@SuppressWarnings("unchecked")
 		SizeEstimate<FrameEncoder>[][] encoderInfo = new SizeEstimate[sizeMultiples.length][(numSamples + baseSize - 1) / baseSize];
-		long startTime = System.currentTimeMillis();
-		for (int i = 0; i < encoderInfo[0].length; i++) {
-			double progress = (double)i / encoderInfo[0].length;
-			double timeRemain = (System.currentTimeMillis() - startTime) / 1000.0 / progress * (1 - progress);
-			System.err.printf("\rprogress=%.2f%%    timeRemain=%ds", progress * 100, Math.round(timeRemain));
-			
-			int pos = i * baseSize;
-			for (int j = 0; j < encoderInfo.length; j++) {
-				int n = Math.min(sizeMultiples[j] * baseSize, numSamples - pos);
-				long[][] subsamples = getRange(samples, pos, n);
-				encoderInfo[j][i] = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opts);
+		int numPositions = encoderInfo[0].length;
+		listener.progress(0, numPositions);
+		if (executor == null) {
+			for (int i = 0; i < numPositions; i++) {
+				evaluate(info, samples, baseSize, sizeMultiples, opts, encoderInfo, i, i + 1);
+				listener.progress(i + 1, numPositions);
+			}
+		} else {
+			// A few ranges per thread, so that the threads stay busy until the end
+			int numRanges = Math.min(Runtime.getRuntime().availableProcessors() * 8, numPositions);
+			if (executor instanceof ForkJoinPool)
+				numRanges = Math.min(((ForkJoinPool)executor).getParallelism() * 8, numPositions);
+			CompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
+			List<Future<Integer>> ranges = new ArrayList<>();
+			try {
+				for (int k = 0; k < numRanges; k++) {
+					int start = (int)((long)numPositions * k / numRanges);
+					int end = (int)((long)numPositions * (k + 1) / numRanges);
+					ranges.add(completion.submit(() -> {
+						evaluate(info, samples, baseSize, sizeMultiples, opts, encoderInfo, start, end);
+						return end - start;
+					}));
+				}
+				int done = 0;
+				for (int k = 0; k < numRanges; k++) {
+					done += awaitRange(completion);
+					listener.progress(done, numPositions);
+				}
+			} finally {
+				for (Future<Integer> range : ranges)
+					range.cancel(true);
 			}
 		}
-		System.err.println();
 		
 		// Initialize arrays to prepare for dynamic programming
 		FrameEncoder[] bestEncoders = new FrameEncoder[encoderInfo[0].length];
@@ -100,6 +168,39 @@ public final class AdvancedFlacEncoder {
 	}
 	
 	
+	// Computes encoderInfo[ : ][start : end], i.e. the best encoders of all the sizes for the given block positions.
+	private static void evaluate(StreamInfo info, int[][] samples, int baseSize, int[] sizeMultiples, SubframeEncoder.SearchOptions opts,
+			SizeEstimate<FrameEncoder>[][] encoderInfo, int start, int end) {
+		int numSamples = samples[0].length;
+		for (int i = start; i < end; i++) {
+			int pos = i * baseSize;
+			for (int j = 0; j < encoderInfo.length; j++) {
+				int n = Math.min(sizeMultiples[j] * baseSize, numSamples - pos);
+				long[][] subsamples = getRange(samples, pos, n);
+				encoderInfo[j][i] = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opts);
+			}
+		}
+	}
+	
+	
+	// Waits for any of the submitted ranges to be evaluated, returning its number of positions.
+	private static int awaitRange(CompletionService<Integer> completion) throws IOException {
+		try {
+			return completion.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	
 	// Returns the subrange array[ : ][off : off + len] upcasted to long.
 	private static long[][] getRange(int[][] array, int off, int len) {
 		long[][] result = new long[array.length][len];
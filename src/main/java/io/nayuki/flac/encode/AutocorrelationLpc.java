@@ -0,0 +1,152 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import java.util.Objects;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions.Window;
+
+
+/* 
+ * Computes linear prediction coefficients by the autocorrelation method: the samples are tapered by
+ * a window, their autocorrelation is taken up to the maximum order, and the Levinson-Durbin recursion
+ * gives the coefficients of every order from 1 to the maximum in one pass. Acts as a helper class for
+ * LinearPredictiveEncoder, as an alternative to solving the covariance equations of each order.
+ */
+final class AutocorrelationLpc {
+	
+	/*---- Static functions ----*/
+	
+	// Returns an array where result[p] holds the real coefficients of order p (for 0 <= p <= maxOrder) of the given
+	// samples, in the order used by LinearPredictiveEncoder: result[p][p - j] multiplies the sample j positions back.
+	// The result is the workspace array lpcCoefs of the current thread (with entries beyond maxOrder left as they were),
+	// so it is valid until the next computation of LPC coefficients. Requires 0 <= maxOrder < samples.length. Orders beyond the point where the recursion becomes numerically
+	// unstable (e.g. for silence or a pure tone) repeat the coefficients of the last stable order, padded with zero.
+	public static double[][] computeCoefficients(long[] samples, int maxOrder, Window window) {
+		return computeCoefficients(samples, maxOrder, window, null);
+	}
+	
+	
+	// Same as above, but if errors is not null (with a length of at least maxOrder + 1), then errors[p] is
+	// set to the prediction error energy of order p over the windowed samples, as given by the recursion.
+	public static double[][] computeCoefficients(long[] samples, int maxOrder, Window window, double[] errors) {
+		Objects.requireNonNull(samples);
+		Objects.requireNonNull(window);
+		int n = samples.length;
+		if (maxOrder < 0 || maxOrder >= n || errors != null && errors.length <= maxOrder)
+			throw new IllegalArgumentException();
+		
+		// Autocorrelation of the windowed samples
+		EncoderWorkspace ws = EncoderWorkspace.get();
+		double[] win = ws.window(window, n);
+		double[] x = ws.windowed(n);
+		for (int i = 0; i < n; i++)
+			x[i] = samples[i] * win[i];
+		double[] autocorr = ws.autocorr;
+		for (int lag = 0; lag <= maxOrder; lag++) {
+			double sum = 0;
+			for (int i = lag; i < n; i++)
+				sum += x[i] * x[i - lag];
+			autocorr[lag] = sum;
+		}
+		
+		// Levinson-Durbin recursion, where pred[1 : m + 1] are the coefficients of order m
+		double[][] result = ws.lpcCoefs;
+		double[] pred = ws.levinsonCoefs;
+		double[] prev = ws.levinsonPrevCoefs;
+		double error = autocorr[0];
+		if (errors != null)
+			errors[0] = error;
+		for (int m = 1; m <= maxOrder; m++) {
+			double reflection = 0;
+			if (error > 0) {
+				double acc = autocorr[m];
+				for (int j = 1; j < m; j++)
+					acc -= pred[j] * autocorr[m - j];
+				reflection = acc / error;
+				if (!(Math.abs(reflection) < 1))  // Lost positive definiteness to rounding (or NaN)
+					reflection = 0;
+			}
+			System.arraycopy(pred, 1, prev, 1, m - 1);
+			for (int j = 1; j < m; j++)
+				pred[j] = prev[j] - reflection * prev[m - j];
+			pred[m] = reflection;
+			error *= 1 - reflection * reflection;
+			if (errors != null)
+				errors[m] = error;
+			
+			double[] coefs = result[m];
+			for (int j = 1; j <= m; j++)
+				coefs[m - j] = pred[j];
+		}
+		return result;
+	}
+	
+	
+	// Returns a new array of the given window function evaluated at each of len sample positions.
+	static double[] makeWindow(Window window, int len) {
+		if (len < 1)
+			throw new IllegalArgumentException();
+		double[] result = new double[len];
+		double last = Math.max(len - 1, 1);
+		for (int i = 0; i < len; i++) {
+			double t = i / last;  // Position in [0, 1]
+			double val;
+			switch (window) {
+				case RECTANGLE:
+					val = 1;
+					break;
+				case WELCH:
+					val = 1 - (2 * t - 1) * (2 * t - 1);
+					break;
+				case HANN:
+					val = 0.5 - 0.5 * Math.cos(2 * Math.PI * t);
+					break;
+				case TUKEY: {
+					double taper = Math.min(t, 1 - t) / (TUKEY_ALPHA / 2);
+					val = taper >= 1 ? 1 : 0.5 - 0.5 * Math.cos(Math.PI * taper);
+					break;
+				}
+				default:
+					throw new AssertionError();
+			}
+			result[i] = val;
+		}
+		if (len == 1)  // Don't zero out the only sample
+			result[0] = 1;
+		return result;
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	// Fraction of the block tapered by the Tukey window (half at each end).
+	private static final double TUKEY_ALPHA = 0.5;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	private AutocorrelationLpc() {}
+	
+}
@@ -19,15 +19,20 @@
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package io.nayuki.flac.encode;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Objects;
+import io.nayuki.flac.common.Crc;
 
 
 /* 
  * A bit-oriented output stream, with other methods tailored for FLAC usage (such as CRC calculation).
+ * Whole bytes are collected in an internal buffer, which is written to the underlying stream only when
+ * it is full or on flush(). The CRCs are computed lazily over the buffered bytes, with lookup tables,
+ * when they are requested (or before the buffer is written out).
  */
 public final class BitOutputStream implements AutoCloseable {
 	
@@ -36,11 +41,17 @@ public final class BitOutputStream implements AutoCloseable {
 	private OutputStream out;  // The underlying byte-based output stream to write to.
 	private long bitBuffer;  // Only the bottom bitBufferLen bits are valid; the top bits are garbage.
 	private int bitBufferLen;  // Always in the range [0, 64].
-	private long byteCount;  // Number of bytes written since the start of stream.
+	private long byteCount;  // Number of bytes written to the underlying stream since the start of stream.
+	
+	private byte[] byteBuffer;  // Whole bytes not yet written to the underlying stream.
+	private int byteBufferLen;  // Always in the range [0, byteBuffer.length).
 	
-	// Current state of the CRC calculations.
+	// Current state of the CRC calculations, which cover the bytes before byteBuffer[crc8Start]
+	// (respectively crc16Start) since the last reset; the rest of the buffer is not included yet.
 	private int crc8;  // Always a uint8 value.
 	private int crc16;  // Always a uint16 value.
+	private int crc8Start;  // In the range [0, byteBufferLen].
+	private int crc16Start;  // In the range [0, byteBufferLen].
 	
 	
 	
@@ -52,6 +63,8 @@ public final class BitOutputStream implements AutoCloseable {
 		bitBuffer = 0;
 		bitBufferLen = 0;
 		byteCount = 0;
+		byteBuffer = new byte[BUFFER_SIZE];
+		byteBufferLen = 0;
 		resetCrcs();
 	}
 	
@@ -81,49 +94,165 @@ public final class BitOutputStream implements AutoCloseable {
 	public void writeInt(int n, int val) throws IOException {
 		if (n < 0 || n > 32)
 			throw new IllegalArgumentException();
-		
+		writeBits(n, val & ((1L << n) - 1));
+	}
+	
+	
+	// Writes n zero bits followed by a one bit, for any n >= 0.
+	public void writeUnary(int n) throws IOException {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		for (; n > MAX_BITS; n -= MAX_BITS)
+			writeBits(MAX_BITS, 0);
+		writeBits(n + 1, 1);
+	}
+	
+	
+	// Writes the given value, which must fit in a signed int53, as a Rice code with the given parameter:
+	// the zigzag-mapped value shifted right by param in unary, then its lowest param bits.
+	public void writeRiceSignedInt(int param, long val) throws IOException {
+		if (param < 0 || param > 31)
+			throw new IllegalArgumentException();
+		long unsigned = (val << 1) ^ (val >> 63);
+		long unary = unsigned >>> param;
+		if (unary > Integer.MAX_VALUE)
+			throw new IllegalArgumentException();
+		long low = unsigned & ((1L << param) - 1);
+		if (unary + 1 + param <= MAX_BITS)  // Common case: all in one go
+			writeBits((int)unary + 1 + param, (1L << param) | low);
+		else {
+			writeUnary((int)unary);
+			writeBits(param, low);
+		}
+	}
+	
+	
+	// Writes the values vals[start : end] as Rice codes with the given parameter, like writeRiceSignedInt() on each
+	// of them, but with the bit buffer kept in local variables for the whole run.
+	public void writeRiceSignedInts(int param, int[] vals, int start, int end) throws IOException {
+		Objects.requireNonNull(vals);
+		if (param < 0 || param > 31)
+			throw new IllegalArgumentException();
+		if (start < 0 || start > end || end > vals.length)
+			throw new IndexOutOfBoundsException();
+		long mask = (1L << param) - 1;
+		long buf = bitBuffer;
+		int len = bitBufferLen;
+		for (int i = start; i < end; i++) {
+			long val = vals[i];
+			long unsigned = (val << 1) ^ (val >> 63);
+			long unary = unsigned >>> param;
+			if (unary + 1 + param <= MAX_BITS) {  // Common case: all in one go
+				int n = (int)unary + 1 + param;
+				if (len + n > 64) {
+					bitBuffer = buf;
+					bitBufferLen = len;
+					drainBits();
+					len = bitBufferLen;
+				}
+				buf = (buf << n) | (1L << param) | (unsigned & mask);
+				len += n;
+			} else {
+				bitBuffer = buf;
+				bitBufferLen = len;
+				if (unary > Integer.MAX_VALUE)
+					throw new IllegalArgumentException();
+				writeUnary((int)unary);
+				writeBits(param, unsigned & mask);
+				buf = bitBuffer;
+				len = bitBufferLen;
+			}
+		}
+		bitBuffer = buf;
+		bitBufferLen = len;
+	}
+	
+	
+	// Writes the given n bits (with no bits set above them) for 0 <= n <= MAX_BITS.
+	private void writeBits(int n, long bits) throws IOException {
 		if (bitBufferLen + n > 64) {
-			flush();
+			drainBits();
 			assert bitBufferLen + n <= 64;
 		}
-		bitBuffer <<= n;
-		bitBuffer |= val & ((1L << n) - 1);
+		bitBuffer = (bitBuffer << n) | bits;
 		bitBufferLen += n;
 		assert 0 <= bitBufferLen && bitBufferLen <= 64;
 	}
 	
 	
-	// Writes out whole bytes from the bit buffer to the underlying stream. After this is done,
-	// only 0 to 7 bits remain in the bit buffer. Also updates the CRCs on each byte written.
-	public void flush() throws IOException {
+	// Moves whole bytes from the bit buffer to the byte buffer. Afterward, only 0 to 7 bits remain in the bit buffer.
+	private void drainBits() throws IOException {
 		while (bitBufferLen >= 8) {
 			bitBufferLen -= 8;
-			int b = (int)(bitBuffer >>> bitBufferLen) & 0xFF;
-			out.write(b);
-			byteCount++;
-			crc8 ^= b;
-			crc16 ^= b << 8;
-			for (int i = 0; i < 8; i++) {
-				crc8 <<= 1;
-				crc16 <<= 1;
-				crc8 ^= (crc8 >>> 8) * 0x107;
-				crc16 ^= (crc16 >>> 16) * 0x18005;
-				assert (crc8 >>> 8) == 0;
-				assert (crc16 >>> 16) == 0;
-			}
+			byteBuffer[byteBufferLen] = (byte)(bitBuffer >>> bitBufferLen);
+			byteBufferLen++;
+			if (byteBufferLen == byteBuffer.length)
+				drainBytes();
 		}
 		assert 0 <= bitBufferLen && bitBufferLen <= 64;
+	}
+	
+	
+	// Brings the CRCs up to date and writes out the byte buffer to the underlying stream.
+	private void drainBytes() throws IOException {
+		updateCrcs();
+		out.write(byteBuffer, 0, byteBufferLen);
+		byteCount += byteBufferLen;
+		byteBufferLen = 0;
+		crc8Start = 0;
+		crc16Start = 0;
+	}
+	
+	
+	// Writes out whole bytes from the bit and byte buffers to the underlying stream, and flushes it.
+	// After this is done, only 0 to 7 bits remain in the bit buffer.
+	public void flush() throws IOException {
+		drainBits();
+		drainBytes();
 		out.flush();
 	}
 	
 	
+	/*-- Writing whole bytes --*/
+	
+	// Writes the given bytes b[off : off + len] at the current position, which must be
+	// byte-aligned (e.g. a frame encoded separately). The bytes are included in the CRCs.
+	public void writeBytes(byte[] b, int off, int len) throws IOException {
+		Objects.requireNonNull(b);
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		checkByteAligned();
+		drainBits();
+		while (len > 0) {
+			int n = Math.min(byteBuffer.length - byteBufferLen, len);
+			System.arraycopy(b, off, byteBuffer, byteBufferLen, n);
+			byteBufferLen += n;
+			off += n;
+			len -= n;
+			if (byteBufferLen == byteBuffer.length)
+				drainBytes();
+		}
+	}
+	
+	
 	/*-- CRC calculations --*/
 	
+	// Updates both CRCs with the bytes buffered since their last update.
+	private void updateCrcs() {
+		crc8 = Crc.update8(crc8, byteBuffer, crc8Start, byteBufferLen - crc8Start);
+		crc8Start = byteBufferLen;
+		crc16 = Crc.update16(crc16, byteBuffer, crc16Start, byteBufferLen - crc16Start);
+		crc16Start = byteBufferLen;
+	}
+	
+	
 	// Marks the current position (which must be byte-aligned) as the start of both CRC calculations.
 	public void resetCrcs() throws IOException {
-		flush();
+		drainBits();
 		crc8 = 0;
 		crc16 = 0;
+		crc8Start = byteBufferLen;
+		crc16Start = byteBufferLen;
 	}
 	
 	
@@ -131,7 +260,9 @@ public final class BitOutputStream implements AutoCloseable {
 	// (or from the beginning of stream if reset was never called).
 	public int getCrc8() throws IOException {
 		checkByteAligned();
-		flush();
+		drainBits();
+		crc8 = Crc.update8(crc8, byteBuffer, crc8Start, byteBufferLen - crc8Start);
+		crc8Start = byteBufferLen;
 		if ((crc8 >>> 8) != 0)
 			throw new AssertionError();
 		return crc8;
@@ -142,7 +273,9 @@ public final class BitOutputStream implements AutoCloseable {
 	// (or from the beginning of stream if reset was never called).
 	public int getCrc16() throws IOException {
 		checkByteAligned();
-		flush();
+		drainBits();
+		crc16 = Crc.update16(crc16, byteBuffer, crc16Start, byteBufferLen - crc16Start);
+		crc16Start = byteBufferLen;
 		if ((crc16 >>> 16) != 0)
 			throw new AssertionError();
 		return crc16;
@@ -151,9 +284,9 @@ public final class BitOutputStream implements AutoCloseable {
 	
 	/*-- Miscellaneous --*/
 	
-	// Returns the number of bytes written since the start of the stream.
+	// Returns the number of bytes written since the start of the stream (including the buffered ones).
 	public long getByteCount() {
-		return byteCount + bitBufferLen / 8;
+		return byteCount + byteBufferLen + bitBufferLen / 8;
 	}
 	
 	
@@ -162,6 +295,7 @@ public final class BitOutputStream implements AutoCloseable {
 	// does not have native resources. It is okay to flush() the pending data and simply let a BitOutputStream
 	// be garbage collected without calling close(), but the parent is still responsible for calling close()
 	// on the underlying output stream if it uses native resources (such as FileOutputStream or SocketOutputStream).
+	// Data written without a following flush() or close() may not reach the underlying stream.
 	public void close() throws IOException {
 		if (out != null) {
 			checkByteAligned();
@@ -171,4 +305,14 @@ public final class BitOutputStream implements AutoCloseable {
 		}
 	}
 	
+	
+	
+	/*---- Constants ----*/
+	
+	// Size of the byte buffer.
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	// Maximum number of bits that writeBits() takes at once, so that they always fit after draining the bit buffer.
+	private static final int MAX_BITS = 56;
+	
 }
@@ -0,0 +1,108 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions.LpcMethod;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions.Window;
+
+
+/* 
+ * A ladder of encoder configurations in the manner of the reference encoder's levels 0 to 8, where each level
+ * trades speed for compression: it fixes the block size, the stereo strategy, the fixed and LPC order ranges,
+ * the LPC method and apodization window, the maximum Rice partition order, and how the LPC orders are searched.
+ * All the levels conform to the FLAC subset format (for sample rates up to 48 kHz). Level 8 is the configuration
+ * that this library used before levels existed, namely SearchOptions.SUBSET_BEST with blocks of 4096 samples,
+ * and it stays the default. Each level is at least as fast as the next one up and its output is no larger than
+ * that of the one below, which RealtimeBudget relies on. See the README for the measured speed and size of each level.
+ * Objects of this class are immutable.
+ */
+public final class CompressionLevel {
+	
+	/*---- Static functions ----*/
+	
+	// Returns the configuration of the given level in the range [0, 8].
+	public static CompressionLevel of(int level) {
+		if (level < 0 || level >= LEVELS.length)
+			throw new IllegalArgumentException("Compression level must be in [0, 8]: " + level);
+		return LEVELS[level];
+	}
+	
+	
+	
+	/*---- Fields ----*/
+	
+	// The level number, in the range [0, 8].
+	public final int level;
+	
+	// The number of samples per channel in each block (except possibly the last one).
+	public final int blockSize;
+	
+	// The search options for each frame and subframe. Not null.
+	public final SearchOptions searchOptions;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	private CompressionLevel(int level, int blockSize, SearchOptions searchOptions) {
+		this.level = level;
+		this.blockSize = blockSize;
+		this.searchOptions = searchOptions;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	public String toString() {
+		return "CompressionLevel " + level;
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	private static final CompressionLevel[] LEVELS = {
+		// Fixed prediction only, on the one stereo mode guessed by a cheap estimate
+		new CompressionLevel(0, 4096, new SearchOptions(0, 2, -1, -1, 0, 3).withStereoModes(1)),
+		
+		// Covariance LPC (least squares per order) with a pruned search of the orders, widening the orders,
+		// the Rice partition orders and then the number of stereo modes searched
+		new CompressionLevel(1, 4096, new SearchOptions(0, 1, 2,  4, 0, 3).withStereoModes(1).withLpcOrderTolerance(0.01)),
+		new CompressionLevel(2, 4096, new SearchOptions(0, 1, 2,  8, 0, 4).withStereoModes(1).withLpcOrderTolerance(0.01)),
+		new CompressionLevel(3, 4096, new SearchOptions(0, 1, 2, 12, 0, 5).withStereoModes(1).withLpcOrderTolerance(0.01)),
+		new CompressionLevel(4, 4096, new SearchOptions(0, 1, 2, 12, 0, 5).withStereoModes(2).withLpcOrderTolerance(0.01)),
+		new CompressionLevel(5, 4096, new SearchOptions(0, 1, 2, 12, 0, 6).withLpcOrderTolerance(0.01)),
+		
+		// Covariance LPC with the exhaustive search of the orders, on more stereo modes and Rice partition orders
+		new CompressionLevel(6, 4096, new SearchOptions(0, 1, 2, 12, 0, 6).withStereoModes(1)),
+		new CompressionLevel(7, 4096, new SearchOptions(0, 1, 2, 12, 0, 6).withStereoModes(2)),
+		new CompressionLevel(8, 4096, SearchOptions.SUBSET_BEST),
+	};
+	
+	
+	// The level used when none is given.
+	public static final CompressionLevel DEFAULT = LEVELS[8];
+	
+}
@@ -31,29 +31,25 @@ import java.io.IOException;
  */
 final class ConstantEncoder extends SubframeEncoder {
 	
-	// Computes the best way to encode the given values under the constant coding mode,
-	// returning an exact size plus a new encoder object associated with the input arguments.
-	// However if the sample data is non-constant then null is returned instead,
-	// to indicate that the data is impossible to represent in this mode.
-	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, int depth) {
+	// Computes the best way to encode the given values under the constant coding mode, setting up the given
+	// encoder object for the input arguments and returning the exact size. However if the sample data is
+	// non-constant then -1 is returned instead, to indicate that the data is impossible to represent in this mode.
+	public static long computeBest(long[] samples, int shift, int depth, ConstantEncoder enc) {
 		if (!isConstant(samples))
-			return null;
-		ConstantEncoder enc = new ConstantEncoder(samples, shift, depth);
-		long size = 1 + 6 + 1 + shift + depth;
-		return new SizeEstimate<SubframeEncoder>(size, enc);
+			return -1;
+		enc.reset(shift, depth);
+		return 1 + 6 + 1 + shift + depth;
 	}
 	
 	
-	// Constructs a constant encoder for the given data, right shift, and sample depth.
-	public ConstantEncoder(long[] samples, int shift, int depth) {
-		super(shift, depth);
-	}
+	// Constructs a constant encoder to be set up by computeBest().
+	public ConstantEncoder() {}
 	
 	
 	// Encodes the given vector of audio sample data to the given bit output stream using
 	// the this encoding method (and the superclass fields sampleShift and sampleDepth).
 	// This requires the data array to have the same values (but not necessarily
-	// the same object reference) as the array that was passed to the constructor.
+	// the same object reference) as the array that was passed to computeBest().
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
 		if (!isConstant(samples))
 			throw new IllegalArgumentException("Data is not constant-valued");
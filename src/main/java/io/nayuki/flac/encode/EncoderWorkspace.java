@@ -0,0 +1,348 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions.Window;
+
+
+/* 
+ * Scratch buffers reused by the frame and subframe encoders of one thread, so that encoding a run of
+ * frames of the same block size allocates no arrays of samples in the steady state. The sample arrays
+ * have exactly the requested length (because the subframe encoders work on whole arrays), and are
+ * reallocated only when the block size changes. The scratch buffers carry no state between uses: each
+ * user overwrites the part it reads, and must be done with a buffer before calling code that may reuse it.
+ * The exception is a small ring of kept residuals, which lets the subframe encoder chosen by a search
+ * reuse its residual and Rice parameters at encoding time, as long as the slot was not claimed again since.
+ * Each slot also owns the encoder objects that a search sets up for its candidates, and the frame encoder
+ * object is reused by the sequential encoders, so that the searches allocate no objects either.
+ */
+final class EncoderWorkspace {
+	
+	/*---- Static functions ----*/
+	
+	private static final ThreadLocal<EncoderWorkspace> INSTANCES = ThreadLocal.withInitial(EncoderWorkspace::new);
+	
+	
+	// Returns the workspace of the current thread.
+	public static EncoderWorkspace get() {
+		return INSTANCES.get();
+	}
+	
+	
+	
+	/*---- Fields ----*/
+	
+	private long[] mid = new long[0];
+	private long[] side = new long[0];
+	private long[] shifted = new long[0];
+	private int[] narrowed = new int[0];
+	private int[] predictions = new int[0];
+	private final long[][] differences = new long[5][0];
+	private Residual residual = new Residual();
+	private Residual spareResidual = new Residual();
+	private final Residual[] keptResiduals = new Residual[KEPT_SLOTS];
+	private final long[] keptStamps = new long[KEPT_SLOTS];
+	private final ConstantEncoder[] constantEncoders = new ConstantEncoder[KEPT_SLOTS];
+	private final VerbatimEncoder[] verbatimEncoders = new VerbatimEncoder[KEPT_SLOTS];
+	private final FixedPredictionEncoder[] fixedEncoders = new FixedPredictionEncoder[KEPT_SLOTS];
+	private final LinearPredictiveEncoder[] lpcEncoders = new LinearPredictiveEncoder[KEPT_SLOTS];
+	private final SizeEstimate<SubframeEncoder>[] estimates;
+	private LinearPredictiveEncoder lpcEncoder = new LinearPredictiveEncoder();
+	private int nextSlot = 0;
+	private long nextStamp = 1;
+	private final long[][] escapeOr = new long[5][0];
+	private final long[][] bitsAtParam = new long[5][0];
+	private int[] riceParams = new int[0];
+	private double[] windowed = new double[0];
+	private double[] window = new double[0];
+	private Window windowType = null;
+	
+	// Augmented matrix for the LPC normal equations, of the maximum order 32.
+	public final double[][] lpcMatrix = new double[32][33];
+	
+	// Real LPC coefficients of each order p in [0, 32], where lpcCoefs[p] has length p (solved by
+	// LinearPredictiveEncoder, or computed for all orders at once by AutocorrelationLpc).
+	public final double[][] lpcCoefs = new double[33][];
+	
+	// Prediction error energy of each LPC order in [0, 32] (used by SubframeEncoder to prune orders).
+	public final double[] lpcErrors = new double[33];
+	
+	// Autocorrelation, and the coefficients of the current and previous orders of the Levinson-Durbin
+	// recursion, up to order 32 (used by AutocorrelationLpc).
+	public final double[] autocorr = new double[33];
+	public final double[] levinsonCoefs = new double[33];
+	public final double[] levinsonPrevCoefs = new double[33];
+	
+	// Rounding residue of each real LPC coefficient, the coefficient indices sorted by it, and the
+	// best quantized coefficients found so far, up to order 32 (used by LinearPredictiveEncoder).
+	public final double[] roundingResidues = new double[32];
+	public final int[] roundingOrder = new int[32];
+	public final int[] bestCoefs = new int[32];
+	
+	// Dot product calculator of a channel variant, and those of the 4 variants of a stereo frame
+	// when they are computed together (used by SubframeEncoder and FrameEncoder).
+	public final FastDotProduct dotProduct = new FastDotProduct();
+	public final FastDotProduct[] stereoDotProducts = new FastDotProduct[4];
+	
+	// Estimated bits of each stereo mode, and which of them get the full search (used by FrameEncoder).
+	public final double[] stereoModeBits = new double[4];
+	public final boolean[] stereoModesTried = new boolean[4];
+	
+	// The pruning state of an LPC order search (used by SubframeEncoder).
+	public final SubframeEncoder.LpcOrderPruning lpcOrderPruning = new SubframeEncoder.LpcOrderPruning();
+	
+	// The frame encoder reused by the sequential encoders, valid until the next search (used by FrameEncoder).
+	public final FrameEncoder frameEncoder = new FrameEncoder();
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	@SuppressWarnings("unchecked")
+	private EncoderWorkspace() {
+		estimates = new SizeEstimate[KEPT_SLOTS];
+		for (int i = 0; i < keptResiduals.length; i++) {
+			keptResiduals[i] = new Residual();
+			constantEncoders[i] = new ConstantEncoder();
+			verbatimEncoders[i] = new VerbatimEncoder();
+			fixedEncoders[i] = new FixedPredictionEncoder();
+			lpcEncoders[i] = new LinearPredictiveEncoder();
+			estimates[i] = new SizeEstimate<SubframeEncoder>(0, verbatimEncoders[i]);
+		}
+		for (int i = 0; i < lpcCoefs.length; i++)
+			lpcCoefs[i] = new double[i];
+		for (int i = 0; i < stereoDotProducts.length; i++)
+			stereoDotProducts[i] = new FastDotProduct();
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the arrays for the mid and side channels of a stereo frame (used by FrameEncoder).
+	public long[] mid(int len) {
+		if (mid.length != len)
+			mid = new long[len];
+		return mid;
+	}
+	
+	public long[] side(int len) {
+		if (side.length != len)
+			side = new long[len];
+		return side;
+	}
+	
+	
+	// Returns the array for the samples of a subframe shifted right by the wasted bits (used by LinearPredictiveEncoder).
+	public long[] shifted(int len) {
+		if (shifted.length != len)
+			shifted = new long[len];
+		return shifted;
+	}
+	
+	
+	// Returns the arrays for the shifted samples narrowed to ints, and for their predictions
+	// by the int kernel of LPC (used by LinearPredictiveEncoder).
+	public int[] narrowed(int len) {
+		if (narrowed.length != len)
+			narrowed = new int[len];
+		return narrowed;
+	}
+	
+	public int[] predictions(int len) {
+		if (predictions.length != len)
+			predictions = new int[len];
+		return predictions;
+	}
+	
+	
+	// Returns 5 arrays for the differences of orders 0 to 4 of the shifted samples of a subframe (used by FixedPredictionEncoder).
+	public long[][] differences(int len) {
+		if (differences[0].length != len) {
+			for (int i = 0; i < differences.length; i++)
+				differences[i] = new long[len];
+		}
+		return differences;
+	}
+	
+	
+	// Returns the scratch residual of the prediction being evaluated or encoded (used by the fixed and LPC encoders).
+	public Residual residual(int len) {
+		residual.setLength(len);
+		return residual;
+	}
+	
+	
+	// Exchanges the scratch residual with the spare one, so that the best of several
+	// candidates can be put aside while evaluating the others (used by LinearPredictiveEncoder).
+	public void swapSpareResidual() {
+		Residual temp = residual;
+		residual = spareResidual;
+		spareResidual = temp;
+	}
+	
+	
+	/*-- Kept residuals --*/
+	
+	// Claims the next slot of the ring of kept residuals for a subframe search, invalidating
+	// the residual kept there before, and returns its index. The slot's stamp identifies the claim.
+	public int claimSlot() {
+		int slot = nextSlot;
+		nextSlot = (nextSlot + 1) % KEPT_SLOTS;
+		keptStamps[slot] = nextStamp;
+		nextStamp++;
+		return slot;
+	}
+	
+	
+	public long getStamp(int slot) {
+		return keptStamps[slot];
+	}
+	
+	
+	// Moves the scratch residual into the given slot, by exchanging it with the one there (without copying).
+	public void keepResidual(int slot) {
+		Residual temp = keptResiduals[slot];
+		keptResiduals[slot] = residual;
+		residual = temp;
+	}
+	
+	
+	// Returns the residual kept in the given slot if the slot was not claimed again since the given stamp, otherwise null.
+	public Residual getKeptResidual(int slot, long stamp) {
+		return keptStamps[slot] == stamp ? keptResiduals[slot] : null;
+	}
+	
+	
+	// Returns the encoder objects of the given slot, which the search that claimed the slot sets up for its candidates,
+	// and the size estimate that it returns (used by SubframeEncoder). They are reused when the slot is claimed again.
+	public ConstantEncoder constantEncoder(int slot) {
+		return constantEncoders[slot];
+	}
+	
+	public VerbatimEncoder verbatimEncoder(int slot) {
+		return verbatimEncoders[slot];
+	}
+	
+	public FixedPredictionEncoder fixedEncoder(int slot) {
+		return fixedEncoders[slot];
+	}
+	
+	public LinearPredictiveEncoder lpcEncoder(int slot) {
+		return lpcEncoders[slot];
+	}
+	
+	public SizeEstimate<SubframeEncoder> estimate(int slot) {
+		return estimates[slot];
+	}
+	
+	
+	// Returns the scratch LPC encoder, which is set up for each candidate evaluated (used by SubframeEncoder).
+	public LinearPredictiveEncoder lpcEncoder() {
+		return lpcEncoder;
+	}
+	
+	
+	// Moves the scratch LPC encoder into the given slot, by exchanging it with the one there (without copying).
+	public void keepLpcEncoder(int slot) {
+		LinearPredictiveEncoder temp = lpcEncoders[slot];
+		lpcEncoders[slot] = lpcEncoder;
+		lpcEncoder = temp;
+	}
+	
+	
+	// Returns the per-partition statistics of RiceEncoder, in 5 sets that each have room for at least the given number
+	// of partitions. RiceEncoder uses set 0, and FixedPredictionEncoder gathers one set per order in the same pass.
+	public long[][] escapeOr(int numPartitions) {
+		if (escapeOr[0].length < numPartitions) {
+			for (int i = 0; i < escapeOr.length; i++)
+				escapeOr[i] = new long[numPartitions];
+		}
+		return escapeOr;
+	}
+	
+	public long[][] bitsAtParam(int numPartitions) {
+		if (bitsAtParam[0].length < numPartitions * 16) {
+			for (int i = 0; i < bitsAtParam.length; i++)
+				bitsAtParam[i] = new long[numPartitions * 16];
+		}
+		return bitsAtParam;
+	}
+	
+	public int[] riceParams(int numPartitions) {
+		if (riceParams.length < numPartitions)
+			riceParams = new int[numPartitions];
+		return riceParams;
+	}
+	
+	
+	// Returns the array for the windowed samples of a subframe (used by AutocorrelationLpc).
+	public double[] windowed(int len) {
+		if (windowed.length != len)
+			windowed = new double[len];
+		return windowed;
+	}
+	
+	
+	// Returns the values of the given window over the given length, computed again only when either changes.
+	// Unlike the other buffers, the result holds state and must not be modified.
+	public double[] window(Window type, int len) {
+		if (type != windowType || window.length != len) {
+			window = AutocorrelationLpc.makeWindow(type, len);
+			windowType = type;
+		}
+		return window;
+	}
+	
+	
+	
+	/*---- Helper structure ----*/
+	
+	// The residual of a prediction, and the Rice parameter of each partition of the chosen partition order.
+	public static final class Residual {
+		
+		// The shifted samples after prediction, including the warm-up samples (which are unchanged).
+		public long[] values = new long[0];
+		
+		// riceParams[i] is the Rice parameter of partition i in [0, 14], or 16 plus the bit width of the escape code.
+		// Has room for values.length partitions, which is at least as many as any partition order allows.
+		public int[] riceParams = new int[1];
+		
+		
+		private void setLength(int len) {
+			if (values.length != len) {
+				values = new long[len];
+				riceParams = new int[Math.max(len, 1)];
+			}
+		}
+		
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	// Number of kept residuals, enough for every channel variant of a frame searched before it is encoded.
+	private static final int KEPT_SLOTS = 8;
+	
+}
@@ -29,17 +29,18 @@ import java.util.Objects;
  * arithmetic operations. Acts as a helper class for LinearPredictiveEncoder.
  * Objects of this class are intended to be immutable, but can't enforce it because
  * they store a reference to a caller-controlled array without making a private copy.
+ * The exception is the objects of an EncoderWorkspace, which are set again for each block.
  */
 final class FastDotProduct {
 	
 	/*---- Fields ----*/
 	
 	// Not null, and precomputed.length <= data.length.
-	private long[] data;
+	private long[] data = new long[0];
 	
 	// precomputed[i] = dotProduct(0, i, data.length - i). In other words, it is the sum
 	// the of products of all unordered pairs of elements whose indices differ by i.
-	private double[] precomputed;
+	private double[] precomputed = new double[0];
 	
 	
 	
@@ -50,24 +51,94 @@ final class FastDotProduct {
 	// To avoid the cost of copying the entire vector, a reference to the array is saved into this object.
 	// The values from data array are still needed when dotProduct() is called, thus no other code is allowed to modify the values.
 	public FastDotProduct(long[] data, int maxDelta) {
+		set(data, maxDelta);
+	}
+	
+	
+	// Constructs a calculator over an empty array, to be set over another array later (for an EncoderWorkspace).
+	FastDotProduct() {}
+	
+	
+	// Sets the 4 given fast dot product calculators over the 4 channel variants of a stereo block, in the order
+	// {left, right, mid, side}, where mid[i] = (left[i] + right[i]) >> 1 and side[i] = left[i] - right[i].
+	// Instead of computing 4 sets of precomputed dot products, only those of left and right and their cross-correlation
+	// are computed in one pass, in exact integer arithmetic. Side's follow exactly from the identity
+	// (L-R)(L'-R') = LL' + RR' - (LR' + RL') summed over each pair of indexes, whereas mid's are approximated as
+	// (LL' + RR' + (LR' + RL')) / 4, which ignores the rounding of each mid sample. Returns false without setting
+	// anything if the sums could overflow a long, in which case the caller should set up each calculator separately.
+	// Like the constructor above, this saves references to the 4 arrays without copying them.
+	public static boolean forStereo(long[] left, long[] right, long[] mid, long[] side, int maxDelta, FastDotProduct[] result) {
 		// Check arguments
-		this.data = Objects.requireNonNull(data);
-		if (maxDelta < 0 || maxDelta >= data.length)
+		Objects.requireNonNull(left);
+		Objects.requireNonNull(right);
+		Objects.requireNonNull(mid);
+		Objects.requireNonNull(side);
+		int n = left.length;
+		if (right.length != n || mid.length != n || side.length != n)
+			throw new IllegalArgumentException();
+		if (maxDelta < 0 || maxDelta >= n)
 			throw new IllegalArgumentException();
 		
-		// Precompute some dot products
-		precomputed = new double[maxDelta + 1];
+		// Every sum below is bounded in magnitude by 4 * n * maxAbs^2
+		long maxAbs = 0;
+		for (int i = 0; i < n; i++)
+			maxAbs = Math.max(Math.max(Math.abs(left[i]), Math.abs(right[i])), maxAbs);
+		if (4.0 * n * maxAbs * maxAbs >= 0x1p62)
+			return false;
+		
+		// Precompute the 3 sets of dot products
+		double[] leftDots  = result[0].setData(left , maxDelta);
+		double[] rightDots = result[1].setData(right, maxDelta);
+		double[] midDots   = result[2].setData(mid  , maxDelta);
+		double[] sideDots  = result[3].setData(side , maxDelta);
+		for (int i = 0; i <= maxDelta; i++) {
+			long ll = 0, rr = 0, lr = 0;
+			for (int j = 0; i + j < n; j++) {
+				long l0 = left[j], l1 = left[i + j];
+				long r0 = right[j], r1 = right[i + j];
+				ll += l0 * l1;
+				rr += r0 * r1;
+				lr += l0 * r1 + r0 * l1;
+			}
+			leftDots[i] = ll;
+			rightDots[i] = rr;
+			midDots[i] = (ll + rr + lr) / 4.0;
+			sideDots[i] = ll + rr - lr;
+		}
+		return true;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Makes this calculator over the given array with the given maximum difference in indexes, like the constructor,
+	// reusing the array of precomputed dot products if it has the same length. Returns this object.
+	FastDotProduct set(long[] data, int maxDelta) {
+		double[] precomputed = setData(data, maxDelta);
 		for (int i = 0; i < precomputed.length; i++) {
 			double sum = 0;
 			for (int j = 0; i + j < data.length; j++)
 				sum += (double)data[j] * data[i + j];
 			precomputed[i] = sum;
 		}
+		return this;
 	}
 	
 	
+	// Checks the arguments and saves the given array, and returns the array for the precomputed dot products,
+	// which the caller must fill in so that precomputed[i] = dotProduct(0, i, data.length - i) (up to rounding).
+	private double[] setData(long[] data, int maxDelta) {
+		Objects.requireNonNull(data);
+		if (maxDelta < 0 || maxDelta >= data.length)
+			throw new IllegalArgumentException();
+		this.data = data;
+		if (precomputed.length != maxDelta + 1)
+			precomputed = new double[maxDelta + 1];
+		return precomputed;
+	}
+	
 	
-	/*---- Methods ----*/
 	
 	// Returns the dot product of data[off0 : off0 + len] with data[off1 : off1 + len],
 	// i.e. data[off0]*data[off1] + data[off0+1]*data[off1+1] + ... + data[off0+len-1]*data[off1+len-1],
@@ -0,0 +1,283 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import java.io.IOException;
+import java.util.Objects;
+import io.nayuki.flac.common.FrameInfo;
+import io.nayuki.flac.common.StreamInfo;
+
+
+/* 
+ * Encodes FLAC frames as fast as possible, for ingesting audio where speed matters more than size. Unlike FlacEncoder,
+ * nothing is searched: each subframe uses the fixed predictor of order 0, 1 or 2 with the smallest sum of absolute
+ * residuals, the stereo mode is picked from these sums as well, the residual is split into a fixed number of
+ * partitions, and the Rice parameter of each partition is derived from the mean of its values. The samples stay
+ * as ints throughout, and the residuals go straight into the bit output stream. Subframes that are constant are
+ * coded as such, and those that would not shrink are stored verbatim. The output conforms to the FLAC subset format
+ * if the block size does (at most 4608 for sample rates up to 48 kHz). Sample depths up to 24 bits are supported.
+ * Like FlacEncoder, this writes only the frames and sets the block and frame size ranges of the stream info.
+ */
+public final class FastFlacEncoder {
+	
+	/*---- Fields ----*/
+	
+	private final StreamInfo info;
+	private final BitOutputStream out;
+	private final int[] mid;  // Scratch space for stereo
+	private final int[] side;
+	private final int[] residual;
+	private final long[][] sums;  // Per channel variant: absolute residual sums of orders 0 to 2, then the minimum and maximum sample
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Encodes all the given samples (of info.numSamples per channel) as frames of the given block size.
+	public FastFlacEncoder(StreamInfo info, int[][] samples, int blockSize, BitOutputStream out) throws IOException {
+		this(info, blockSize, out);
+		if (samples.length != info.numChannels)
+			throw new IllegalArgumentException();
+		long pos = 0;
+		for (; pos < info.numSamples; pos += blockSize)
+			encodeFrame(samples, (int)pos, (int)Math.min(info.numSamples - pos, blockSize), pos);
+	}
+	
+	
+	// Encodes all the audio pulled from the given source, one block at a time.
+	// The length of the stream need not be known in advance: info.numSamples is set to the total number of samples read.
+	public FastFlacEncoder(StreamInfo info, FlacEncoder.BlockSource source, int blockSize, BitOutputStream out) throws IOException {
+		this(info, blockSize, out);
+		int[][] block = new int[info.numChannels][blockSize];
+		long pos = 0;
+		for (int n = blockSize; n == blockSize && (n = source.read(block)) > 0; pos += n)
+			encodeFrame(block, 0, n, pos);
+		info.numSamples = pos;
+	}
+	
+	
+	private FastFlacEncoder(StreamInfo info, int blockSize, BitOutputStream out) {
+		this.info = Objects.requireNonNull(info);
+		this.out = Objects.requireNonNull(out);
+		if (info.sampleDepth > 24 || blockSize < 1 || blockSize > 65535)
+			throw new IllegalArgumentException();
+		info.minBlockSize = blockSize;
+		info.maxBlockSize = blockSize;
+		info.minFrameSize = 0;
+		info.maxFrameSize = 0;
+		mid = new int[blockSize];
+		side = new int[blockSize];
+		residual = new int[blockSize];
+		sums = new long[Math.max(info.numChannels, 4)][5];
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Encodes the samples [off : off + n] of every channel as one frame starting at the given stream position.
+	private void encodeFrame(int[][] samples, int off, int n, long pos) throws IOException {
+		long startByte = out.getByteCount();
+		int depth = info.sampleDepth;
+		FrameInfo meta = new FrameInfo();
+		meta.sampleOffset = pos;
+		meta.sampleDepth = depth;
+		meta.sampleRate = info.sampleRate;
+		meta.blockSize = n;
+		for (int ch = 0; ch < samples.length; ch++) {
+			analyze(samples[ch], off, n, sums[ch]);
+			if (sums[ch][3] < -(1 << (depth - 1)) || sums[ch][4] >= 1 << (depth - 1))
+				throw new IllegalArgumentException("Sample does not fit the sample depth");
+		}
+		
+		if (samples.length != 2) {
+			meta.channelAssignment = samples.length - 1;
+			meta.writeHeader(out);
+			for (int ch = 0; ch < samples.length; ch++)
+				encodeSubframe(samples[ch], off, n, depth, sums[ch]);
+		} else {
+			// Compare the stereo modes by the product of their channels' residual sums, as a channel
+			// costs about log2 of its mean absolute residual in bits per sample
+			int[] left = samples[0];
+			int[] right = samples[1];
+			for (int i = 0; i < n; i++) {
+				int l = left[off + i];
+				int r = right[off + i];
+				mid[i] = (l + r) >> 1;
+				side[i] = l - r;
+			}
+			analyze(mid, 0, n, sums[2]);
+			analyze(side, 0, n, sums[3]);
+			double leftSum  = bestSum(sums[0]) + 1.0;
+			double rightSum = bestSum(sums[1]) + 1.0;
+			double midSum   = bestSum(sums[2]) + 1.0;
+			double sideSum  = bestSum(sums[3]) + 1.0;
+			double[] modeCost = {leftSum * rightSum, leftSum * sideSum, sideSum * rightSum, midSum * sideSum};
+			int mode = 0;  // Independent, left-side, side-right, mid-side
+			for (int i = 1; i < modeCost.length; i++) {
+				if (modeCost[i] < modeCost[mode])
+					mode = i;
+			}
+			meta.channelAssignment = mode == 0 ? 1 : mode + 7;
+			meta.writeHeader(out);
+			if (mode == 0 || mode == 1)
+				encodeSubframe(left, off, n, depth, sums[0]);
+			if (mode == 3)
+				encodeSubframe(mid, 0, n, depth, sums[2]);
+			if (mode != 0)
+				encodeSubframe(side, 0, n, depth + 1, sums[3]);
+			if (mode == 0 || mode == 2)
+				encodeSubframe(right, off, n, depth, sums[1]);
+		}
+		out.alignToByte();
+		out.writeInt(16, out.getCrc16());
+		
+		long frameSize = out.getByteCount() - startByte;
+		if (info.minFrameSize == 0 || frameSize < info.minFrameSize)
+			info.minFrameSize = (int)frameSize;
+		if (frameSize > info.maxFrameSize)
+			info.maxFrameSize = (int)frameSize;
+	}
+	
+	
+	// Writes the samples x[off : off + n] at the given depth as a subframe, given their statistics from analyze().
+	private void encodeSubframe(int[] x, int off, int n, int depth, long[] stats) throws IOException {
+		if (stats[3] == stats[4]) {
+			out.writeInt(8, 0);  // Constant, no wasted bits
+			out.writeInt(depth, x[off]);
+			return;
+		}
+		
+		int order = 0;
+		for (int k = 1; k <= 2; k++) {
+			if (stats[k] < stats[order])
+				order = k;
+		}
+		// A Rice code spends about param + 2 bits on a value whose zigzag mapping has a mean of 2^param
+		if (n <= PARTITION_SIZE_MIN || riceParam(2 * stats[order], n - 2) + 2 >= depth) {
+			out.writeInt(8, 1 << 1);  // Verbatim, no wasted bits
+			for (int i = 0; i < n; i++)
+				out.writeInt(depth, x[off + i]);
+			return;
+		}
+		
+		out.writeInt(8, (8 + order) << 1);  // Fixed prediction, no wasted bits
+		for (int i = 0; i < order; i++)
+			out.writeInt(depth, x[off + i]);
+		int[] res = residual;
+		if (order == 0) {
+			System.arraycopy(x, off, res, 0, n);
+		} else if (order == 1) {
+			for (int i = 1; i < n; i++)
+				res[i] = x[off + i] - x[off + i - 1];
+		} else {
+			for (int i = 2; i < n; i++)
+				res[i] = x[off + i] - 2 * x[off + i - 1] + x[off + i - 2];
+		}
+		
+		// Use the highest partition order (up to the fixed one) that divides the block into partitions
+		// longer than the warm-up, and take each partition's Rice parameter from its mean
+		int partOrder = PARTITION_ORDER;
+		while (partOrder > 0 && ((n & ((1 << partOrder) - 1)) != 0 || (n >>> partOrder) < PARTITION_SIZE_MIN))
+			partOrder--;
+		int numPartitions = 1 << partOrder;
+		int partSize = n >>> partOrder;
+		int[] params = new int[numPartitions];
+		int maxParam = 0;
+		for (int j = 0, start = order; j < numPartitions; j++, start = j * partSize) {
+			long sum = 0;
+			int end = (j + 1) * partSize;
+			for (int i = start; i < end; i++) {
+				int r = res[i];
+				sum += (r << 1) ^ (r >> 31);
+			}
+			params[j] = riceParam(sum, end - start);
+			maxParam = Math.max(params[j], maxParam);
+		}
+		int paramBits = maxParam <= 14 ? 4 : 5;  // Partitioned Rice or partitioned Rice2 coding
+		out.writeInt(2, paramBits - 4);
+		out.writeInt(4, partOrder);
+		for (int j = 0, start = order; j < numPartitions; j++, start = j * partSize) {
+			out.writeInt(paramBits, params[j]);
+			out.writeRiceSignedInts(params[j], res, start, (j + 1) * partSize);
+		}
+	}
+	
+	
+	
+	/*---- Static functions ----*/
+	
+	// Sets stats[0 : 3] to the sums of the absolute residuals of the fixed predictors of orders 0 to 2
+	// over x[off + 2 : off + n] (so that they cover the same samples), and stats[3] and stats[4] to the
+	// minimum and maximum of x[off : off + n]. The sums and extremes over a block of ints fit in a long.
+	private static void analyze(int[] x, int off, int n, long[] stats) {
+		long sum0 = 0, sum1 = 0, sum2 = 0;
+		int min = x[off], max = min;
+		if (n >= 2) {
+			min = Math.min(x[off + 1], min);
+			max = Math.max(x[off + 1], max);
+		}
+		int prev = n >= 2 ? x[off + 1] : 0;
+		int prevDiff = n >= 2 ? prev - x[off] : 0;
+		for (int i = off + 2, end = off + n; i < end; i++) {
+			int cur = x[i];
+			int diff = cur - prev;
+			sum0 += Math.abs(cur);
+			sum1 += Math.abs(diff);
+			sum2 += Math.abs(diff - prevDiff);
+			min = Math.min(cur, min);
+			max = Math.max(cur, max);
+			prev = cur;
+			prevDiff = diff;
+		}
+		stats[0] = sum0;
+		stats[1] = sum1;
+		stats[2] = sum2;
+		stats[3] = min;
+		stats[4] = max;
+	}
+	
+	
+	private static long bestSum(long[] stats) {
+		return Math.min(Math.min(stats[0], stats[1]), stats[2]);
+	}
+	
+	
+	// Returns floor(log2(sum / count)) for the given sum of zigzag-mapped values, or 0 if the mean is below 1,
+	// which is close to the best Rice parameter for values of a Laplacian-like distribution.
+	private static int riceParam(long sum, int count) {
+		long mean = sum / count;
+		return mean > 0 ? 63 - Long.numberOfLeadingZeros(mean) : 0;
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	// The partition order of the residuals, unless the block is too short or not divisible into that many partitions.
+	private static final int PARTITION_ORDER = 4;
+	
+	// The shortest partition used, which is longer than the warm-up of every order.
+	private static final int PARTITION_SIZE_MIN = 16;
+	
+}
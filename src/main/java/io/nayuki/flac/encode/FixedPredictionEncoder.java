@@ -30,31 +30,86 @@ import java.util.Objects;
  */
 final class FixedPredictionEncoder extends SubframeEncoder {
 	
-	// Computes the best way to encode the given values under the fixed prediction coding mode of the given order,
-	// returning a size plus a new encoder object associated with the input arguments. The maxRiceOrder argument
-	// is used by the Rice encoder to estimate the size of coding the residual signal.
-	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, int depth, int order, int maxRiceOrder) {
-		FixedPredictionEncoder enc = new FixedPredictionEncoder(samples, shift, depth, order);
-		samples = LinearPredictiveEncoder.shiftRight(samples, shift);
-		LinearPredictiveEncoder.applyLpc(samples, COEFFICIENTS[order], 0);
-		long temp = RiceEncoder.computeBestSizeAndOrder(samples, order, maxRiceOrder);
-		enc.riceOrder = (int)(temp & 0xF);
-		long size = 1 + 6 + 1 + shift + order * depth + (temp >>> 4);
-		return new SizeEstimate<SubframeEncoder>(size, enc);
+	// Computes the best way to encode the given values under the fixed prediction coding mode of any order in the range
+	// [minOrder, maxOrder] (both in [0, 4]), setting up the given encoder object for the input arguments and returning
+	// the size, or -1 if the block is too short for every order. The first order among those of the lowest size wins.
+	// The maxRiceOrder argument is used by the Rice encoder to estimate the size of coding the residual signal.
+	// All the orders are analyzed from a single pass over the samples: the residual of order k is the k-th
+	// difference of the shifted samples, so the differences of successive orders are computed from each other.
+	public static long computeBest(long[] samples, int shift, int depth, int minOrder, int maxOrder, int maxRiceOrder, FixedPredictionEncoder enc) {
+		if (minOrder < 0 || minOrder > maxOrder || maxOrder >= COEFFICIENTS.length)
+			throw new IllegalArgumentException();
+		int n = samples.length;
+		maxOrder = Math.min(maxOrder, n);
+		if (minOrder > maxOrder)
+			return -1;
+		
+		// Compute the differences of all the orders in one pass (the residual of order k is valid for i >= k,
+		// because it depends on the k previous samples), then gather the Rice statistics at the finest
+		// partition order, which the lowest order of warm-up allows
+		EncoderWorkspace ws = EncoderWorkspace.get();
+		long[][] diffs = ws.differences(n);
+		long[] diff0 = diffs[0], diff1 = diffs[1], diff2 = diffs[2], diff3 = diffs[3], diff4 = diffs[4];
+		long prev0 = 0, prev1 = 0, prev2 = 0, prev3 = 0;
+		for (int i = 0; i < n; i++) {
+			long e0 = samples[i] >> shift;
+			long e1 = e0 - prev0;
+			long e2 = e1 - prev1;
+			long e3 = e2 - prev2;
+			diff4[i] = e3 - prev3;
+			diff0[i] = prev0 = e0;
+			diff1[i] = prev1 = e1;
+			diff2[i] = prev2 = e2;
+			diff3[i] = prev3 = e3;
+		}
+		int top = RiceEncoder.getMaxPartitionOrder(n, minOrder, maxRiceOrder);
+		int numPartitions = 1 << top;
+		int partSize = n >>> top;
+		long[][] escapeOr = ws.escapeOr(numPartitions);
+		long[][] bitsAtParam = ws.bitsAtParam(numPartitions);
+		for (int k = minOrder; k <= maxOrder; k++) {
+			for (int j = 0; j < numPartitions; j++)
+				RiceEncoder.accumulate(diffs[k], Math.max(j * partSize, k), (j + 1) * partSize, j, escapeOr[k], bitsAtParam[k]);
+		}
+		
+		// Search each order's partitions, putting aside the Rice parameters of the best order so far
+		int bestOrder = -1;
+		int bestRiceOrder = -1;
+		long bestSize = Long.MAX_VALUE;
+		for (int k = minOrder; k <= maxOrder; k++) {
+			int partOrder = RiceEncoder.getMaxPartitionOrder(n, k, maxRiceOrder);
+			for (int i = top; i > partOrder; i--)
+				RiceEncoder.halvePartitions(escapeOr[k], bitsAtParam[k], 1 << i);
+			EncoderWorkspace.Residual residual = ws.residual(n);
+			long temp = RiceEncoder.computeBestSizeAndOrder(escapeOr[k], bitsAtParam[k], n, k, partOrder, residual.riceParams);
+			long size = 1 + 6 + 1 + shift + k * depth + (temp >>> 4);
+			if (size < bestSize) {
+				bestOrder = k;
+				bestRiceOrder = (int)(temp & 0xF);
+				bestSize = size;
+				ws.swapSpareResidual();
+			}
+		}
+		
+		// Put the winner's residual (after the unchanged warm-up samples) next to its Rice parameters
+		ws.swapSpareResidual();
+		EncoderWorkspace.Residual residual = ws.residual(n);
+		System.arraycopy(diff0, 0, residual.values, 0, bestOrder);
+		System.arraycopy(diffs[bestOrder], bestOrder, residual.values, bestOrder, n - bestOrder);
+		enc.reset(shift, depth);
+		enc.order = bestOrder;
+		enc.riceOrder = bestRiceOrder;
+		return bestSize;
 	}
 	
 	
 	
-	private final int order;
+	private int order;
 	public int riceOrder;
 	
 	
-	public FixedPredictionEncoder(long[] samples, int shift, int depth, int order) {
-		super(shift, depth);
-		if (order < 0 || order >= COEFFICIENTS.length || samples.length < order)
-			throw new IllegalArgumentException();
-		this.order = order;
-	}
+	// Constructs a fixed prediction encoder to be set up by computeBest().
+	public FixedPredictionEncoder() {}
 	
 	
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
@@ -64,12 +119,20 @@ final class FixedPredictionEncoder extends SubframeEncoder {
 			throw new IllegalArgumentException();
 		
 		writeTypeAndShift(8 + order, out);
-		samples = LinearPredictiveEncoder.shiftRight(samples, sampleShift);
+		EncoderWorkspace.Residual residual = getKeptResidual(samples.length);
+		int[] riceParams = null;
+		if (residual != null)
+			riceParams = residual.riceParams;
+		else {
+			residual = EncoderWorkspace.get().residual(samples.length);
+			LinearPredictiveEncoder.shiftRight(samples, sampleShift, residual.values);
+			LinearPredictiveEncoder.applyLpc(residual.values, COEFFICIENTS[order], 0, residual.values);
+		}
+		samples = residual.values;
 		
 		for (int i = 0; i < order; i++)  // Warmup
 			writeRawSample(samples[i], out);
-		LinearPredictiveEncoder.applyLpc(samples, COEFFICIENTS[order], 0);
-		RiceEncoder.encode(samples, order, riceOrder, out);
+		RiceEncoder.encode(samples, order, riceOrder, riceParams, out);
 	}
 	
 	
@@ -21,84 +21,148 @@
 
 package io.nayuki.flac.encode;
 
+import io.nayuki.flac.common.SampleBuffer;
 import io.nayuki.flac.common.StreamInfo;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 
 public final class FlacEncoder {
 
 	/**
 	 * Takes a chunk of samples from some channel starting from offset,
-	 * copies and casting len of samples to long[].
+	 * copies and casting dest.length of samples to dest.
 	 */
 	@FunctionalInterface
 	private interface Slicer {
-		long[] apply(int ch, int offset, int len);
+		void apply(int ch, int offset, long[] dest);
+	}
+
+
+	/**
+	 * Gives the consecutive blocks of samples to encode, widened to long into arrays
+	 * from {@link FrameWriter#newBlock}, and then {@code null} after the last block.
+	 */
+	@FunctionalInterface
+	private interface BlockReader {
+		long[][] next(FrameWriter writer) throws IOException;
+	}
+
+
+	/**
+	 * Supplies consecutive blocks of audio samples to an encoder, so that
+	 * the whole stream never needs to be held in memory at once.
+	 */
+	@FunctionalInterface
+	public interface BlockSource {
+		// Fills block[ch][0 : n] of every channel with the next n samples of the stream and returns n.
+		// Must fill the whole block (n = block[0].length) unless the end of the stream is reached,
+		// in which case 0 <= n < block[0].length is returned (0 meaning that nothing is left).
+		int read(int[][] block) throws IOException;
 	}
 
 
 	public FlacEncoder(StreamInfo info, int[][] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out) throws IOException {
-		Slicer slicer = (ch, off, len) -> {
+		this(info, samples, blockSize, opt, out, null);
+	}
+
+	// Encodes the frames in parallel on the given executor, or sequentially if it is null. Either way,
+	// the frames are written in order and the output (including the frame sizes in info) is exactly the same.
+	public FlacEncoder(StreamInfo info, int[][] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService executor) throws IOException {
+		Slicer slicer = (ch, off, dest) -> {
 			int[] src = samples[ch];
-			long[] dest = new long[len];
-			for (int j = 0; j < len; j++) {
+			for (int j = 0; j < dest.length; j++) {
 				dest[j] = src[off + j];
 			}
-			return dest;
 		};
 
-		init(info, blockSize, slicer, opt, out);
+		init(info, blockSize, slicer, opt, out, executor);
+	}
+
+	public FlacEncoder(StreamInfo info, SampleBuffer[] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out) throws IOException {
+		this(info, samples, blockSize, opt, out, null);
+	}
+
+	public FlacEncoder(StreamInfo info, SampleBuffer[] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService executor) throws IOException {
+		Slicer slicer = (ch, off, dest) -> samples[ch].copyTo(off, dest, 0, dest.length);
+		init(info, blockSize, slicer, opt, out, executor);
+	}
+
+	// Encodes all the audio pulled from the given source, one block at a time. Unlike the other constructors, the length
+	// of the stream need not be known in advance: info.numSamples is set to the total number of samples read at the end.
+	public FlacEncoder(StreamInfo info, BlockSource source, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out) throws IOException {
+		this(info, source, blockSize, opt, out, null);
+	}
+
+	public FlacEncoder(StreamInfo info, BlockSource source, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService executor) throws IOException {
+		info.numSamples = encodeAll(info, blockSize, sourceReader(info, source, blockSize), new FrameWriter(info, opt, out, executor));
 	}
 
-	public FlacEncoder(StreamInfo info, List<Integer>[] samples, int blockSize, SubframeEncoder.SearchOptions opt, BitOutputStream out) throws IOException {
-		Slicer slicer = (ch, off, len) -> {
-			List<Integer> src = samples[ch];
-			long[] dest = new long[len];
-			for (int j = 0; j < len; j++) {
-				dest[j] = src.get(off + j);
+	// Encodes all the audio pulled from the given source like above, sequentially, with the search options of
+	// each frame chosen by the given budget to keep up with its target speed (see RealtimeBudget).
+	public FlacEncoder(StreamInfo info, BlockSource source, int blockSize, RealtimeBudget budget, BitOutputStream out) throws IOException {
+		info.numSamples = encodeAll(info, blockSize, sourceReader(info, source, blockSize), new FrameWriter(info, budget, out));
+	}
+
+	private static BlockReader sourceReader(StreamInfo info, BlockSource source, int blockSize) {
+		int[][] block = new int[info.numChannels][blockSize];
+		boolean[] ended = {false};
+		return writer -> {
+			int n = ended[0] ? 0 : source.read(block);
+			if (n <= 0)
+				return null;
+			ended[0] = n < blockSize;
+			long[][] subsamples = writer.newBlock(block.length, n);
+			for (int ch = 0; ch < block.length; ch++) {
+				int[] src = block[ch];
+				long[] dest = subsamples[ch];
+				for (int j = 0; j < n; j++)
+					dest[j] = src[j];
 			}
-			return dest;
+			return subsamples;
 		};
-		init(info, blockSize, slicer, opt, out);
 	}
 
 	private void init(StreamInfo info,
 					  int blockSize,
 					  Slicer slicer,
 					  SubframeEncoder.SearchOptions opt,
-					  BitOutputStream out) throws IOException
+					  BitOutputStream out,
+					  ExecutorService executor) throws IOException
 	{
+		int[] next = {0};
+		BlockReader reader = writer -> {
+			int pos = next[0];
+			if (pos >= info.numSamples)
+				return null;
+			int n = (int)Math.min(info.numSamples - pos, blockSize);
+			next[0] += n;
+			long[][] subsamples = writer.newBlock(info.numChannels, n);
+			for (int ch = 0; ch < subsamples.length; ch++)
+				slicer.apply(ch, pos, subsamples[ch]);
+			return subsamples;
+		};
+		encodeAll(info, blockSize, reader, new FrameWriter(info, opt, out, executor));
+	}
+
+	// Encodes all the blocks of the given reader as consecutive frames, sets the block and frame size
+	// ranges of the stream info, and returns the total number of samples encoded.
+	private static long encodeAll(StreamInfo info, int blockSize, BlockReader reader, FrameWriter writer) throws IOException {
 		info.minBlockSize = blockSize;
 		info.maxBlockSize = blockSize;
 		info.minFrameSize = 0;
 		info.maxFrameSize = 0;
 
-		for (int pos = 0; pos < info.numSamples;) {
-			int n = Math.min(Long.valueOf(info.numSamples).intValue() - pos, blockSize);
-			long[][] subsamples = getRange(slicer, info.numChannels, pos, n);
-			FrameEncoder enc = FrameEncoder.computeBest(pos, subsamples, info.sampleDepth, info.sampleRate, opt).encoder;
-			long startByte = out.getByteCount();
-			enc.encode(subsamples, out);
-			long frameSize = out.getByteCount() - startByte;
-			if (frameSize < 0 || (int)frameSize != frameSize)
-				throw new AssertionError();
-			if (info.minFrameSize == 0 || frameSize < info.minFrameSize)
-				info.minFrameSize = (int)frameSize;
-			if (frameSize > info.maxFrameSize)
-				info.maxFrameSize = (int)frameSize;
-			pos += n;
-		}
-	}
-
-	// Returns the subrange array[ : ][off : off + len] upcasted to long.
-	private static long[][] getRange(Slicer slicer, int numChannels, int off, int len) {
-		long[][] result = new long[numChannels][0];
-		for (int i = 0; i < numChannels; i++) {
-			result[i] = slicer.apply(i, off, len);
+		long pos = 0;
+		try {
+			for (long[][] subsamples; (subsamples = reader.next(writer)) != null; pos += subsamples[0].length)
+				writer.write(pos, subsamples);
+			writer.finish();
+		} finally {
+			writer.cancel();
 		}
-		return result;
+		return pos;
 	}
 	
 }
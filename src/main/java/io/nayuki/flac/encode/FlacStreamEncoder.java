@@ -0,0 +1,226 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.nayuki.flac.encode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import io.nayuki.flac.common.StreamInfo;
+
+
+/* 
+ * Encodes a FLAC stream from samples pushed to it in pieces of any length, without knowing
+ * the length of the stream in advance. Samples are buffered only until a full block is available,
+ * which is then encoded as a frame, while the frame sizes, the number of samples and the MD5 hash
+ * in the stream info are updated as it goes.
+ * 
+ * The magic string and a STREAMINFO block (the only metadata block) are written at construction,
+ * with the values not known yet left as 0 (unknown). At finish(), if the sink is a
+ * RandomAccessFileOutputStream, the STREAMINFO block is rewritten in place with the final values.
+ * For any other sink, the final stream info is only returned to the caller.
+ * 
+ * Usage: write(...) any number of times, optionally flush(), and finish() once.
+ * The sink is not closed by this class. Not thread-safe.
+ */
+public final class FlacStreamEncoder {
+	
+	/*---- Fields ----*/
+	
+	private final StreamInfo info;
+	private final BitOutputStream out;
+	private final RandomAccessFileOutputStream seekableOut;  // Null if the sink is not seekable
+	private final long startPos;  // Position of the magic string in the seekable sink
+	private final FrameWriter writer;
+	private final MessageDigest hasher;  // Null if the sample depth is not a multiple of 8
+	
+	private final int[][] buffer;  // The samples of the block being filled, buffer[ch][0 : bufferLen]
+	private int bufferLen;
+	private long position;  // Number of samples encoded (not counting the buffered ones)
+	private boolean finished;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Starts a stream with the given format and fixed block size (only the last block may be shorter),
+	// encoding the frames sequentially.
+	public FlacStreamEncoder(OutputStream out, int sampleRate, int numChannels, int sampleDepth, int blockSize,
+			SubframeEncoder.SearchOptions opt) throws IOException {
+		this(out, sampleRate, numChannels, sampleDepth, blockSize, opt, null);
+	}
+	
+	
+	// Starts a stream like above, encoding the frames in parallel on the given executor (or sequentially if it
+	// is null). The output is the same either way, but frames may reach the sink later than their samples are written.
+	public FlacStreamEncoder(OutputStream out, int sampleRate, int numChannels, int sampleDepth, int blockSize,
+			SubframeEncoder.SearchOptions opt, ExecutorService executor) throws IOException {
+		this(out, sampleRate, numChannels, sampleDepth, blockSize, Objects.requireNonNull(opt), null, executor);
+	}
+	
+	
+	// Starts a stream like above, encoding the frames sequentially with the search options of each frame
+	// chosen by the given budget to keep up with its target speed (see RealtimeBudget).
+	public FlacStreamEncoder(OutputStream out, int sampleRate, int numChannels, int sampleDepth, int blockSize,
+			RealtimeBudget budget) throws IOException {
+		this(out, sampleRate, numChannels, sampleDepth, blockSize, null, Objects.requireNonNull(budget), null);
+	}
+	
+	
+	private FlacStreamEncoder(OutputStream out, int sampleRate, int numChannels, int sampleDepth, int blockSize,
+			SubframeEncoder.SearchOptions opt, RealtimeBudget budget, ExecutorService executor) throws IOException {
+		Objects.requireNonNull(out);
+		if (blockSize < 16 || blockSize > 65535)
+			throw new IllegalArgumentException("Invalid block size");
+		
+		info = new StreamInfo();
+		info.sampleRate = sampleRate;
+		info.numChannels = numChannels;
+		info.sampleDepth = sampleDepth;
+		info.minBlockSize = blockSize;
+		info.maxBlockSize = blockSize;
+		info.checkValues();
+		
+		seekableOut = out instanceof RandomAccessFileOutputStream ? (RandomAccessFileOutputStream)out : null;
+		startPos = seekableOut != null ? seekableOut.getPosition() : -1;
+		this.out = new BitOutputStream(out);
+		this.out.writeInt(32, 0x664C6143);
+		info.write(true, this.out);
+		
+		writer = budget != null ? new FrameWriter(info, budget, this.out) : new FrameWriter(info, opt, this.out, executor);
+		if (sampleDepth % 8 == 0) {
+			try {  // Guaranteed available by the Java Cryptography Architecture
+				hasher = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new AssertionError(e);
+			}
+		} else
+			hasher = null;
+		
+		buffer = new int[numChannels][blockSize];
+		bufferLen = 0;
+		position = 0;
+		finished = false;
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Appends the samples block[ch][off : off + len] of every channel to the stream,
+	// encoding every block that gets full.
+	public void write(int[][] block, int off, int len) throws IOException {
+		Objects.requireNonNull(block);
+		if (finished)
+			throw new IllegalStateException("Stream already finished");
+		if (block.length != info.numChannels)
+			throw new IllegalArgumentException("Channel count mismatch");
+		for (int[] chanSamples : block) {
+			if (off < 0 || len < 0 || len > chanSamples.length - off)
+				throw new IndexOutOfBoundsException();
+		}
+		
+		while (len > 0) {
+			int n = Math.min(buffer[0].length - bufferLen, len);
+			for (int ch = 0; ch < buffer.length; ch++)
+				System.arraycopy(block[ch], off, buffer[ch], bufferLen, n);
+			bufferLen += n;
+			off += n;
+			len -= n;
+			if (bufferLen == buffer[0].length)
+				encodeBuffer();
+		}
+	}
+	
+	
+	// Writes all the frames of the full blocks so far to the sink. The samples of the block
+	// not full yet stay buffered, because only the last block of a stream may be shorter.
+	public void flush() throws IOException {
+		if (finished)
+			throw new IllegalStateException("Stream already finished");
+		writer.finish();
+		out.flush();
+	}
+	
+	
+	// Encodes the rest of the samples as the last frame, writes all the frames, and rewrites the
+	// STREAMINFO block if the sink is seekable (leaving the sink positioned at the end of the stream).
+	// Returns a copy of the final stream info. No more samples may be written afterward.
+	public StreamInfo finish() throws IOException {
+		if (finished)
+			throw new IllegalStateException("Stream already finished");
+		if (bufferLen > 0)
+			encodeBuffer();
+		writer.finish();
+		finished = true;
+		info.numSamples = position;
+		if (hasher != null)
+			info.md5Hash = hasher.digest();
+		out.flush();
+		
+		if (seekableOut != null) {
+			// The stream info metadata block is located at a fixed offset by definition
+			long endPos = seekableOut.getPosition();
+			seekableOut.seek(startPos + 4);
+			info.write(true, out);
+			out.flush();
+			seekableOut.seek(endPos);
+		}
+		return new StreamInfo(info);
+	}
+	
+	
+	// Returns a copy of the stream info as known so far (the sample count includes the buffered samples).
+	public StreamInfo getStreamInfo() {
+		StreamInfo result = new StreamInfo(info);
+		result.numSamples = position + bufferLen;
+		return result;
+	}
+	
+	
+	// Hashes and encodes buffer[ : ][0 : bufferLen] as the next frame.
+	private void encodeBuffer() throws IOException {
+		int n = bufferLen;
+		if (hasher != null)
+			StreamInfo.updateMd5Hash(hasher, buffer, n, info.sampleDepth);
+		long[][] subsamples = writer.newBlock(buffer.length, n);
+		for (int ch = 0; ch < buffer.length; ch++) {
+			int[] src = buffer[ch];
+			long[] dest = subsamples[ch];
+			for (int i = 0; i < n; i++)
+				dest[i] = src[i];
+		}
+		boolean ok = false;
+		try {
+			writer.write(position, subsamples);
+			ok = true;
+		} finally {
+			if (!ok)
+				finished = true;
+		}
+		position += n;
+		bufferLen = 0;
+	}
+	
+}
@@ -21,8 +21,8 @@
 
 package io.nayuki.flac.encode;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Objects;
 import io.nayuki.flac.common.FrameInfo;
 
@@ -35,92 +35,173 @@ final class FrameEncoder {
 	
 	/*---- Static functions ----*/
 	
-	public static SizeEstimate<FrameEncoder> computeBest(int sampleOffset, long[][] samples, int sampleDepth, int sampleRate, SubframeEncoder.SearchOptions opt) {
+	// Computes/estimates the best way to encode the given frame of samples, returning a size estimate in bytes plus a new
+	// encoder object (holding copies of the subframe encoders of the search) associated with that size.
+	public static SizeEstimate<FrameEncoder> computeBest(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate, SubframeEncoder.SearchOptions opt) {
 		FrameEncoder enc = new FrameEncoder(sampleOffset, samples, sampleDepth, sampleRate);
+		long size = enc.search(samples, opt, true);
+		return new SizeEstimate<>(size, enc);
+	}
+	
+	
+	// Same as above, but returns the frame encoder object of the workspace of the current thread, which only stays valid
+	// until the next search on this thread. Once the workspace's buffers have the block size, this allocates nothing.
+	static FrameEncoder computeBestReused(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate, SubframeEncoder.SearchOptions opt) {
+		FrameEncoder enc = EncoderWorkspace.get().frameEncoder;
+		enc.reset(sampleOffset, samples, sampleDepth, sampleRate);
+		enc.search(samples, opt, false);
+		return enc;
+	}
+	
+	
+	// Searches the subframe encoders and channel assignment of this frame, which must have been set up for the given samples,
+	// and returns the size in bytes. The subframe encoders are copied from those of the workspace slots if copy is true.
+	private long search(long[][] samples, SubframeEncoder.SearchOptions opt, boolean copy) {
 		int numChannels = samples.length;
-		@SuppressWarnings("unchecked")
-		SizeEstimate<SubframeEncoder>[] encoderInfo = new SizeEstimate[numChannels];
+		int sampleDepth = metadata.sampleDepth;
+		if (subEncoders.length != numChannels)
+			subEncoders = new SubframeEncoder[numChannels];
+		long size = 0;
 		if (numChannels != 2) {
-			enc.metadata.channelAssignment = numChannels - 1;
-			for (int i = 0; i < encoderInfo.length; i++)
-				encoderInfo[i] = SubframeEncoder.computeBest(samples[i], sampleDepth, opt);
+			metadata.channelAssignment = numChannels - 1;
+			for (int i = 0; i < numChannels; i++) {
+				SizeEstimate<SubframeEncoder> info = SubframeEncoder.computeBest(samples[i], sampleDepth, opt);
+				size += info.sizeEstimate;
+				subEncoders[i] = copy ? info.encoder.copy() : info.encoder;
+			}
 		} else {  // Explore the 4 stereo encoding modes
 			long[] left  = samples[0];
 			long[] right = samples[1];
-			long[] mid  = new long[samples[0].length];
-			long[] side = new long[mid.length];
+			EncoderWorkspace ws = EncoderWorkspace.get();
+			long[] mid  = ws.mid(left.length);
+			long[] side = ws.side(left.length);
 			for (int i = 0; i < mid.length; i++) {
 				mid[i] = (left[i] + right[i]) >> 1;
 				side[i] = left[i] - right[i];
 			}
-			SizeEstimate<SubframeEncoder> leftInfo  = SubframeEncoder.computeBest(left , sampleDepth, opt);
-			SizeEstimate<SubframeEncoder> rightInfo = SubframeEncoder.computeBest(right, sampleDepth, opt);
-			SizeEstimate<SubframeEncoder> midInfo   = SubframeEncoder.computeBest(mid  , sampleDepth, opt);
-			SizeEstimate<SubframeEncoder> sideInfo  = SubframeEncoder.computeBest(side , sampleDepth + 1, opt);
-			long mode1Size = leftInfo.sizeEstimate + rightInfo.sizeEstimate;
-			long mode8Size = leftInfo.sizeEstimate + sideInfo.sizeEstimate;
-			long mode9Size = rightInfo.sizeEstimate + sideInfo.sizeEstimate;
-			long mode10Size = midInfo.sizeEstimate + sideInfo.sizeEstimate;
+			FastDotProduct[] fdps = ws.stereoDotProducts;
+			boolean shared = opt.shareStereoDotProducts && opt.lpcMethod == SubframeEncoder.SearchOptions.LpcMethod.COVARIANCE
+				&& 1 <= opt.minLpcOrder && opt.maxLpcOrder < left.length
+				&& FastDotProduct.forStereo(left, right, mid, side, opt.maxLpcOrder, fdps);
+			
+			// Search the channel variants used by the modes tried (independent, left-side, side-right, mid-side)
+			boolean[] tried = ws.stereoModesTried;
+			if (opt.stereoModes < tried.length)
+				rankStereoModes(left, right, mid, side, opt.stereoModes, ws.stereoModeBits, tried);
+			else
+				Arrays.fill(tried, true);
+			boolean useLeft  = tried[0] || tried[1];
+			boolean useRight = tried[0] || tried[2];
+			boolean useSide  = tried[1] || tried[2] || tried[3];
+			SizeEstimate<SubframeEncoder> leftInfo  = useLeft  ? SubframeEncoder.computeBest(left , sampleDepth, opt, shared ? fdps[0] : null) : null;
+			SizeEstimate<SubframeEncoder> rightInfo = useRight ? SubframeEncoder.computeBest(right, sampleDepth, opt, shared ? fdps[1] : null) : null;
+			SizeEstimate<SubframeEncoder> midInfo   = tried[3] ? SubframeEncoder.computeBest(mid  , sampleDepth, opt, shared ? fdps[2] : null) : null;
+			SizeEstimate<SubframeEncoder> sideInfo  = useSide  ? SubframeEncoder.computeBest(side , sampleDepth + 1, opt, shared ? fdps[3] : null) : null;
+			long mode1Size  = tried[0] ? leftInfo.sizeEstimate + rightInfo.sizeEstimate : Long.MAX_VALUE;
+			long mode8Size  = tried[1] ? leftInfo.sizeEstimate + sideInfo.sizeEstimate : Long.MAX_VALUE;
+			long mode9Size  = tried[2] ? rightInfo.sizeEstimate + sideInfo.sizeEstimate : Long.MAX_VALUE;
+			long mode10Size = tried[3] ? midInfo.sizeEstimate + sideInfo.sizeEstimate : Long.MAX_VALUE;
 			long minimum = Math.min(Math.min(mode1Size, mode8Size), Math.min(mode9Size, mode10Size));
+			SizeEstimate<SubframeEncoder> first, second;
 			if (mode1Size == minimum) {
-				enc.metadata.channelAssignment = 1;
-				encoderInfo[0] = leftInfo;
-				encoderInfo[1] = rightInfo;
+				metadata.channelAssignment = 1;
+				first = leftInfo;
+				second = rightInfo;
 			} else if (mode8Size == minimum) {
-				enc.metadata.channelAssignment = 8;
-				encoderInfo[0] = leftInfo;
-				encoderInfo[1] = sideInfo;
+				metadata.channelAssignment = 8;
+				first = leftInfo;
+				second = sideInfo;
 			} else if (mode9Size == minimum) {
-				enc.metadata.channelAssignment = 9;
-				encoderInfo[0] = sideInfo;
-				encoderInfo[1] = rightInfo;
+				metadata.channelAssignment = 9;
+				first = sideInfo;
+				second = rightInfo;
 			} else if (mode10Size == minimum) {
-				enc.metadata.channelAssignment = 10;
-				encoderInfo[0] = midInfo;
-				encoderInfo[1] = sideInfo;
+				metadata.channelAssignment = 10;
+				first = midInfo;
+				second = sideInfo;
 			} else
 				throw new AssertionError();
-		}
-		
-		// Add up subframe sizes
-		long size = 0;
-		enc.subEncoders = new SubframeEncoder[encoderInfo.length];
-		for (int i = 0; i < enc.subEncoders.length; i++) {
-			size += encoderInfo[i].sizeEstimate;
-			enc.subEncoders[i] = encoderInfo[i].encoder;
+			size = minimum;
+			subEncoders[0] = copy ? first.encoder.copy() : first.encoder;
+			subEncoders[1] = copy ? second.encoder.copy() : second.encoder;
 		}
 		
 		// Count length of header (always in whole bytes)
-		try {
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			try (BitOutputStream bitout = new BitOutputStream(bout)) {
-				enc.metadata.writeHeader(bitout);
-			}
-			bout.close();
-			size += bout.toByteArray().length * 8;
-		} catch (IOException e) {
-			throw new AssertionError(e);
-		}
+		size += metadata.getHeaderSize() * 8;
 		
 		// Count padding and footer
 		size = (size + 7) / 8;  // Round up to nearest byte
 		size += 2;  // CRC-16
-		return new SizeEstimate<>(size, enc);
+		return size;
+	}
+	
+	
+	
+	// Sets which of the 4 stereo modes (independent, left-side, side-right, mid-side) are among the given number
+	// of best ones, ranked by the estimated sizes of their channel variants (ties broken in that order of modes),
+	// into the given result array, using the given scratch array of 4 elements for the estimates.
+	private static void rankStereoModes(long[] left, long[] right, long[] mid, long[] side, int count, double[] modeBits, boolean[] result) {
+		double leftBits  = estimateBits(left);
+		double rightBits = estimateBits(right);
+		double midBits   = estimateBits(mid);
+		double sideBits  = estimateBits(side);
+		modeBits[0] = leftBits + rightBits;
+		modeBits[1] = leftBits + sideBits;
+		modeBits[2] = rightBits + sideBits;
+		modeBits[3] = midBits + sideBits;
+		for (int i = 0; i < modeBits.length; i++) {
+			int rank = 0;
+			for (int j = 0; j < modeBits.length; j++) {
+				if (modeBits[j] < modeBits[i] || modeBits[j] == modeBits[i] && j < i)
+					rank++;
+			}
+			result[i] = rank < count;
+		}
+	}
+	
+	
+	// Roughly estimates the number of bits to encode the given samples, from the mean absolute residual of the best
+	// fixed predictor of order at most 2, as a Rice code would spend about log2(mean) + 1 bits per sample.
+	private static double estimateBits(long[] samples) {
+		int n = samples.length;
+		if (n < 3)
+			return 0;
+		long sum0 = 0, sum1 = 0, sum2 = 0;
+		long prev = samples[1], prevDiff = samples[1] - samples[0];
+		for (int i = 2; i < n; i++) {
+			long cur = samples[i];
+			long diff = cur - prev;
+			sum0 += Math.abs(cur);
+			sum1 += Math.abs(diff);
+			sum2 += Math.abs(diff - prevDiff);
+			prev = cur;
+			prevDiff = diff;
+		}
+		double mean = (double)Math.min(Math.min(sum0, sum1), sum2) / (n - 2);
+		return n * (Math.log(mean + 1) / Math.log(2) + 1);
 	}
 	
 	
 	
 	/*---- Fields ----*/
 	
-	public FrameInfo metadata;
-	private SubframeEncoder[] subEncoders;
+	public FrameInfo metadata = new FrameInfo();
+	private SubframeEncoder[] subEncoders = new SubframeEncoder[0];
 	
 	
 	
 	/*---- Constructors ----*/
 	
-	public FrameEncoder(int sampleOffset, long[][] samples, int sampleDepth, int sampleRate) {
-		metadata = new FrameInfo();
+	public FrameEncoder(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate) {
+		reset(sampleOffset, samples, sampleDepth, sampleRate);
+	}
+	
+	
+	// Constructs a frame encoder to be set up for each search (for an EncoderWorkspace).
+	FrameEncoder() {}
+	
+	
+	private void reset(long sampleOffset, long[][] samples, int sampleDepth, int sampleRate) {
 		metadata.sampleOffset = sampleOffset;
 		metadata.sampleDepth = sampleDepth;
 		metadata.sampleRate = sampleRate;
@@ -148,8 +229,9 @@ final class FrameEncoder {
 		} else if (8 <= chanAsgn || chanAsgn <= 10) {
 			long[] left  = samples[0];
 			long[] right = samples[1];
-			long[] mid  = new long[metadata.blockSize];
-			long[] side = new long[metadata.blockSize];
+			EncoderWorkspace ws = EncoderWorkspace.get();
+			long[] mid  = ws.mid(metadata.blockSize);
+			long[] side = ws.side(metadata.blockSize);
 			for (int i = 0; i < metadata.blockSize; i++) {
 				mid[i] = (left[i] + right[i]) >> 1;
 				side[i] = left[i] - right[i];
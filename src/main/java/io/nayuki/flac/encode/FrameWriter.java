@@ -0,0 +1,205 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.nayuki.flac.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import io.nayuki.flac.common.StreamInfo;
+
+
+/* 
+ * Encodes consecutive blocks of samples as frames and writes them in order, widening the frame size
+ * range of the stream info with each frame. With an executor, the frames are searched and encoded
+ * in parallel into separate buffers, and written in order by the thread that calls these methods;
+ * at most a few frames per thread are in flight. The output is the same with or without an executor.
+ * Alternatively, the search options of each frame can be chosen by a RealtimeBudget (encoding sequentially).
+ */
+final class FrameWriter {
+	
+	/*---- Fields ----*/
+	
+	private final StreamInfo info;
+	private final SubframeEncoder.SearchOptions opt;  // Null if chosen by the budget
+	private final RealtimeBudget budget;  // Null for fixed search options
+	private final BitOutputStream out;
+	private final ExecutorService executor;  // Null for encoding sequentially
+	private final int window;
+	private final Deque<Future<byte[]>> pending;
+	private long[][] block = new long[0][0];  // Reused by newBlock() when encoding sequentially
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	public FrameWriter(StreamInfo info, SubframeEncoder.SearchOptions opt, BitOutputStream out, ExecutorService executor) {
+		this(info, Objects.requireNonNull(opt), null, out, executor);
+	}
+	
+	
+	// Encodes the frames sequentially, with the search options chosen by the given budget for each frame.
+	public FrameWriter(StreamInfo info, RealtimeBudget budget, BitOutputStream out) {
+		this(info, null, Objects.requireNonNull(budget), out, null);
+	}
+	
+	
+	private FrameWriter(StreamInfo info, SubframeEncoder.SearchOptions opt, RealtimeBudget budget, BitOutputStream out, ExecutorService executor) {
+		this.info = Objects.requireNonNull(info);
+		this.opt = opt;
+		this.budget = budget;
+		this.out = Objects.requireNonNull(out);
+		this.executor = executor;
+		window = executor != null ? 2 * parallelism(executor) : 0;
+		pending = new ArrayDeque<>();
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns an array of the given size for the samples of a frame to write. When encoding sequentially,
+	// the frame is done with before write() returns, so the same array is given out again for the same size.
+	public long[][] newBlock(int numChannels, int blockSize) {
+		if (executor != null)
+			return new long[numChannels][blockSize];
+		if (block.length != numChannels || block[0].length != blockSize)
+			block = new long[numChannels][blockSize];
+		return block;
+	}
+	
+	
+	// Encodes the given samples (not modified afterward by the caller) starting at the given stream position as
+	// the next frame. Sequentially, the frame is written before returning; otherwise it may be written later.
+	public void write(long pos, long[][] subsamples) throws IOException {
+		int sampleDepth = info.sampleDepth;
+		int sampleRate = info.sampleRate;
+		if (executor == null) {
+			long startByte = out.getByteCount();
+			if (budget == null)
+				encodeFrame(pos, subsamples, sampleDepth, sampleRate, opt, out);
+			else {
+				long startTime = System.nanoTime();
+				encodeFrame(pos, subsamples, sampleDepth, sampleRate, budget.getSearchOptions(), out);
+				budget.frameEncoded(subsamples[0].length, sampleRate, System.nanoTime() - startTime);
+			}
+			updateFrameSize(out.getByteCount() - startByte);
+			return;
+		}
+		
+		boolean ok = false;
+		try {
+			pending.add(executor.submit(() -> {
+				ByteArrayOutputStream frame = new ByteArrayOutputStream();
+				BitOutputStream frameOut = new BitOutputStream(frame);
+				encodeFrame(pos, subsamples, sampleDepth, sampleRate, opt, frameOut);
+				frameOut.flush();
+				return frame.toByteArray();
+			}));
+			if (pending.size() >= window)
+				writeFrame(pending.remove());
+			ok = true;
+		} finally {
+			if (!ok)
+				cancel();
+		}
+	}
+	
+	
+	// Waits for all the frames given so far to be encoded, and writes them.
+	public void finish() throws IOException {
+		boolean ok = false;
+		try {
+			while (!pending.isEmpty())
+				writeFrame(pending.remove());
+			ok = true;
+		} finally {
+			if (!ok)
+				cancel();
+		}
+	}
+	
+	
+	// Cancels all the frames not written yet.
+	public void cancel() {
+		for (Future<byte[]> frame : pending)
+			frame.cancel(true);
+		pending.clear();
+	}
+	
+	
+	// Waits for the given frame to be encoded and writes it.
+	private void writeFrame(Future<byte[]> frame) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+		out.writeBytes(bytes, 0, bytes.length);
+		updateFrameSize(bytes.length);
+	}
+	
+	
+	// Widens the frame size range of the stream info to include the given frame size.
+	private void updateFrameSize(long frameSize) {
+		if (frameSize < 0 || (int)frameSize != frameSize)
+			throw new AssertionError();
+		if (info.minFrameSize == 0 || frameSize < info.minFrameSize)
+			info.minFrameSize = (int)frameSize;
+		if (frameSize > info.maxFrameSize)
+			info.maxFrameSize = (int)frameSize;
+	}
+	
+	
+	// Encodes one frame of the given samples starting at the given stream position.
+	private static void encodeFrame(long pos, long[][] subsamples, int sampleDepth, int sampleRate,
+			SubframeEncoder.SearchOptions opt, BitOutputStream out) throws IOException {
+		FrameEncoder enc = FrameEncoder.computeBestReused(pos, subsamples, sampleDepth, sampleRate, opt);
+		enc.encode(subsamples, out);
+	}
+	
+	
+	// Returns the number of threads the given executor is expected to run at once.
+	private static int parallelism(ExecutorService executor) {
+		if (executor instanceof ForkJoinPool)
+			return ((ForkJoinPool)executor).getParallelism();
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+}
@@ -23,7 +23,6 @@ package io.nayuki.flac.encode;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Objects;
 
 
@@ -33,44 +32,60 @@ import java.util.Objects;
 final class LinearPredictiveEncoder extends SubframeEncoder {
 	
 	// Computes a good way to encode the given values under the linear predictive coding (LPC) mode of the given order,
-	// returning a size plus a new encoder object associated with the input arguments. This process of minimizing the size
+	// setting up the given encoder object for the input arguments and returning the size. This process of minimizing the size
 	// has an enormous search space, and it is impossible to guarantee the absolute optimal solution. The maxRiceOrder argument
 	// is used by the Rice encoder to estimate the size of coding the residual signal. The roundVars argument controls
 	// how many different coefficients are tested rounding both up and down, resulting in exponential time behavior.
-	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, int depth, int order, int roundVars, FastDotProduct fdp, int maxRiceOrder) {
+	public static long computeBest(long[] samples, int shift, int depth, int order, int roundVars, FastDotProduct fdp, int maxRiceOrder,
+			LinearPredictiveEncoder enc) {
 		// Check arguments
 		if (order < 1 || order > 32)
 			throw new IllegalArgumentException();
 		if (roundVars < 0 || roundVars > order || roundVars > 30)
 			throw new IllegalArgumentException();
+		double[] realCoefs = solveLeastSquares(samples, order, fdp);
+		return computeBest(samples, shift, depth, realCoefs, roundVars, maxRiceOrder, enc);
+	}
+	
+	
+	// Same as above, but quantizing the given real coefficients (of order realCoefs.length) instead of
+	// solving for them; realCoefs[order - j] is the weight of the sample j positions back.
+	// The coefficients are only read during the call, so they can be in a workspace array.
+	public static long computeBest(long[] samples, int shift, int depth, double[] realCoefs, int roundVars, int maxRiceOrder,
+			LinearPredictiveEncoder enc) {
+		// Check arguments
+		int order = realCoefs.length;
+		if (order < 1 || order > 32)
+			throw new IllegalArgumentException();
+		if (roundVars < 0 || roundVars > order || roundVars > 30)
+			throw new IllegalArgumentException();
+		enc.reset(samples, shift, depth, realCoefs);
+		if (enc.coefShift < 0)  // Coefficients too large to quantize; not a usable candidate
+			return Long.MAX_VALUE;
+		EncoderWorkspace ws = EncoderWorkspace.get();
+		samples = shiftRight(samples, shift, ws.shifted(samples.length));
+		int[] narrowed = ws.narrowed(samples.length);
+		long maxAbs = narrow(samples, narrowed);
 		
-		LinearPredictiveEncoder enc = new LinearPredictiveEncoder(samples, shift, depth, order, fdp);
-		samples = shiftRight(samples, shift);
-		
-		final double[] residues;
-		Integer[] indices = null;
+		// Order the coefficients by decreasing rounding residue, stably (by insertion, as there are at most 32)
+		int[] indices = ws.roundingOrder;
 		int scaler = 1 << enc.coefShift;
 		if (roundVars > 0) {
-			residues = new double[order];
-			indices = new Integer[order];
+			double[] residues = ws.roundingResidues;
 			for (int i = 0; i < order; i++) {
-				residues[i] = Math.abs(Math.round(enc.realCoefs[i] * scaler) - enc.realCoefs[i] * scaler);
-				indices[i] = i;
+				residues[i] = Math.abs(Math.round(realCoefs[i] * scaler) - realCoefs[i] * scaler);
+				int j = i;
+				for (; j > 0 && Double.compare(residues[indices[j - 1]], residues[i]) < 0; j--)
+					indices[j] = indices[j - 1];
+				indices[j] = i;
 			}
-			Arrays.sort(indices, new Comparator<Integer>() {
-				public int compare(Integer x, Integer y) {
-					return Double.compare(residues[y], residues[x]);
-				}
-			});
-		} else
-			residues = null;
+		}
 		
 		long bestSize = Long.MAX_VALUE;
-		int[] bestCoefs = enc.coefficients.clone();
 		for (int i = 0; i < (1 << roundVars); i++) {
 			for (int j = 0; j < roundVars; j++) {
 				int k = indices[j];
-				double coef = enc.realCoefs[k];
+				double coef = realCoefs[k];
 				int val;
 				if (((i >>> j) & 1) == 0)
 					val = (int)Math.floor(coef * scaler);
@@ -79,76 +94,137 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 				enc.coefficients[order - 1 - k] = Math.max(Math.min(val, (1 << (enc.coefDepth - 1)) - 1), -(1 << (enc.coefDepth - 1)));
 			}
 			
-			long[] newData = roundVars > 0 ? samples.clone() : samples;
-			applyLpc(newData, enc.coefficients, enc.coefShift);
-			long temp = RiceEncoder.computeBestSizeAndOrder(newData, order, maxRiceOrder);
+			EncoderWorkspace.Residual residual = ws.residual(samples.length);
+			long sumAbs = 0;
+			for (int c : enc.coefficients)
+				sumAbs += Math.abs(c);
+			if (sumAbs * maxAbs <= Integer.MAX_VALUE)  // No prediction can overflow an int
+				applyLpc(narrowed, enc.coefficients, enc.coefShift, residual.values);
+			else
+				applyLpc(samples, enc.coefficients, enc.coefShift, residual.values);
+			long temp = RiceEncoder.computeBestSizeAndOrder(residual.values, order, maxRiceOrder, residual.riceParams);
 			long size = 1 + 6 + 1 + shift + order * depth + (temp >>> 4);
 			if (size < bestSize) {
 				bestSize = size;
-				bestCoefs = enc.coefficients.clone();
+				if (roundVars > 0) {  // Put the best coefficients and residual aside from the next variants
+					System.arraycopy(enc.coefficients, 0, ws.bestCoefs, 0, order);
+					ws.swapSpareResidual();
+				}
 				enc.riceOrder = (int)(temp & 0xF);
 			}
 		}
-		enc.coefficients = bestCoefs;
-		return new SizeEstimate<SubframeEncoder>(bestSize, enc);
+		if (roundVars > 0) {  // Leave the best residual as the scratch one, like the other encoders
+			if (bestSize != Long.MAX_VALUE)
+				System.arraycopy(ws.bestCoefs, 0, enc.coefficients, 0, order);
+			ws.swapSpareResidual();
+		}
+		return bestSize;
 	}
 	
 	
 	
-	private final int order;
-	private final double[] realCoefs;
-	private int[] coefficients;
-	private final int coefDepth;
-	private final int coefShift;
+	private int order;
+	private int[] coefficients;  // Of length order, from coefficientsByOrder unless this is a copy
+	private int coefDepth;
+	private int coefShift;
 	public int riceOrder;
+	private int[][] coefficientsByOrder;  // Reused arrays for the coefficients of each order, allocated when first needed
 	
 	
-	public LinearPredictiveEncoder(long[] samples, int shift, int depth, int order, FastDotProduct fdp) {
-		super(shift, depth);
-		int numSamples = samples.length;
-		if (order < 1 || order > 32 || numSamples < order)
+	// Constructs an LPC encoder to be set up by computeBest().
+	public LinearPredictiveEncoder() {}
+	
+	
+	// Sets this encoder up with the given real coefficients, quantized.
+	private void reset(long[] samples, int shift, int depth, double[] realCoefs) {
+		reset(shift, depth);
+		int order = realCoefs.length;
+		if (order < 1 || order > 32 || samples.length < order)
 			throw new IllegalArgumentException();
 		this.order = order;
 		
-		// Set up matrix to solve linear least squares problem
-		double[][] matrix = new double[order][order + 1];
-		for (int r = 0; r < matrix.length; r++) {
-			for (int c = 0; c < matrix[r].length; c++) {
-				double val;
-				if (c >= r)
-					val = fdp.dotProduct(r, c, samples.length - order);
-				else
-					val = matrix[c][r];
-				matrix[r][c] = val;
-			}
-		}
-		
-		// Solve matrix, then examine range of coefficients
-		realCoefs = solveMatrix(matrix);
+		// Examine range of coefficients
 		double maxCoef = 0;
 		for (double x : realCoefs)
 			maxCoef = Math.max(Math.abs(x), maxCoef);
 		int wholeBits = maxCoef >= 1 ? (int)(Math.log(maxCoef) / Math.log(2)) + 1 : 0;
 		
 		// Quantize and store the coefficients
-		coefficients = new int[order];
+		if (coefficientsByOrder == null)
+			coefficientsByOrder = new int[33][];
+		if (coefficientsByOrder[order] == null)
+			coefficientsByOrder[order] = new int[order];
+		coefficients = coefficientsByOrder[order];
 		coefDepth = 15;  // The maximum possible
 		coefShift = coefDepth - 1 - wholeBits;
 		for (int i = 0; i < realCoefs.length; i++) {
 			double coef = realCoefs[realCoefs.length - 1 - i];
-			int val = (int)Math.round(coef * (1 << coefShift));
+			int val = (int)Math.round(coef * Math.pow(2, coefShift));
 			coefficients[i] = Math.max(Math.min(val, (1 << (coefDepth - 1)) - 1), -(1 << (coefDepth - 1)));
 		}
 	}
 	
 	
-	// Solves an n * (n+1) augmented matrix (which modifies its values as a side effect),
-	// returning a new solution vector of length n.
-	private static double[] solveMatrix(double[][] mat) {
+	// Returns the real coefficients of the given order that solve the linear least squares problem,
+	// in the workspace array lpcCoefs[order] (so valid until the next solving of the same order).
+	static double[] solveLeastSquares(long[] samples, int order, FastDotProduct fdp) {
+		if (order < 1 || order > 32 || samples.length < order)
+			throw new IllegalArgumentException();
+		
+		// Set up matrix to solve linear least squares problem
+		EncoderWorkspace ws = EncoderWorkspace.get();
+		double[][] matrix = ws.lpcMatrix;
+		for (int r = 0; r < order; r++) {
+			for (int c = 0; c <= order; c++) {
+				double val;
+				if (c >= r)
+					val = fdp.dotProduct(r, c, samples.length - order);
+				else
+					val = matrix[c][r];
+				matrix[r][c] = val;
+			}
+		}
+		
+		return solveMatrix(matrix, order, ws.lpcCoefs[order]);
+	}
+	
+	
+	// Returns the sum of squared prediction errors over samples[order : samples.length] (up to rounding)
+	// of the given real coefficients from solveLeastSquares(samples, order, fdp), where order = realCoefs.length.
+	// Because the coefficients solve the normal equations, this is dot(y, y) - sum of realCoefs[r] * dot(x_r, y).
+	static double getPredictionError(long[] samples, double[] realCoefs, FastDotProduct fdp) {
+		int order = realCoefs.length;
+		int len = samples.length - order;
+		double result = fdp.dotProduct(order, order, len);
+		for (int r = 0; r < order; r++)
+			result -= realCoefs[r] * fdp.dotProduct(r, order, len);
+		return Math.max(result, 0);
+	}
+	
+	
+	// Returns an optimistic estimate of the size of encoding a block of the given length under LPC of the given order with
+	// least squares prediction error energy, relative to an order that was actually evaluated (the anchor). Scaling the
+	// residual by a factor changes its Rice code by about log2(factor) bits per value, so the estimate is the anchor's size
+	// plus the difference in overhead, plus half the log of the error energy ratio per value, times a safety factor.
+	static long estimateSize(int len, int depth, int anchorOrder, long anchorSize, double anchorError, int order, double error) {
+		if (error <= 0)  // Perfect prediction, which could be arbitrarily small
+			return 0;
+		long overhead = (long)(order - anchorOrder) * depth;  // Warm-up samples, counted like computeBest() does
+		double gain = 0;
+		if (error < anchorError)
+			gain = Math.log(error / anchorError) / Math.log(2) / 2 * (len - order);
+		return Math.max(anchorSize + overhead + Math.round(gain * GAIN_FACTOR), 0);
+	}
+	
+	
+	// Solves the n * (n+1) augmented matrix in the top left corner of the given one (which modifies
+	// its values and swaps its top n rows as a side effect), storing the solution vector into the given
+	// array of length n and returning it.
+	private static double[] solveMatrix(double[][] mat, int n, double[] result) {
 		// Gauss-Jordan elimination algorithm
-		int rows = mat.length;
-		int cols = mat[0].length;
-		if (rows + 1 != cols)
+		int rows = n;
+		int cols = n + 1;
+		if (rows > mat.length || cols > mat[0].length)
 			throw new IllegalArgumentException();
 		
 		// Forward elimination
@@ -185,7 +261,7 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 		}
 		
 		// Back substitution
-		double[] result = new double[rows];
+		Arrays.fill(result, 0);
 		for (int i = numPivots - 1; i >= 0; i--) {
 			int pivotCol = 0;
 			while (pivotCol < cols && mat[i][pivotCol] == 0)
@@ -205,6 +281,14 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 	}
 	
 	
+	public SubframeEncoder copy() {
+		LinearPredictiveEncoder result = (LinearPredictiveEncoder)super.copy();
+		result.coefficients = coefficients.clone();
+		result.coefficientsByOrder = null;
+		return result;
+	}
+	
+	
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
 		Objects.requireNonNull(samples);
 		Objects.requireNonNull(out);
@@ -212,7 +296,16 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 			throw new IllegalArgumentException();
 		
 		writeTypeAndShift(32 + order - 1, out);
-		samples = shiftRight(samples, sampleShift);
+		EncoderWorkspace.Residual residual = getKeptResidual(samples.length);
+		int[] riceParams = null;
+		if (residual != null)
+			riceParams = residual.riceParams;
+		else {
+			residual = EncoderWorkspace.get().residual(samples.length);
+			shiftRight(samples, sampleShift, residual.values);
+			applyLpc(residual.values, coefficients, coefShift, residual.values);
+		}
+		samples = residual.values;
 		
 		for (int i = 0; i < order; i++)  // Warmup
 			writeRawSample(samples[i], out);
@@ -220,24 +313,26 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 		out.writeInt(5, coefShift);
 		for (int x : coefficients)
 			out.writeInt(coefDepth, x);
-		applyLpc(samples, coefficients, coefShift);
-		RiceEncoder.encode(samples, order, riceOrder, out);
+		RiceEncoder.encode(samples, order, riceOrder, riceParams, out);
 	}
 	
 	
 	
 	/*---- Static helper functions ----*/
 	
-	// Applies linear prediction to data[coefs.length : data.length] so that newdata[i] =
-	// data[i] - ((data[i-1]*coefs[0] + data[i-2]*coefs[1] + ... + data[i-coefs.length]*coefs[coefs.length]) >> shift).
+	// Applies linear prediction to data[coefs.length : data.length] so that result[i] =
+	// data[i] - ((data[i-1]*coefs[0] + data[i-2]*coefs[1] + ... + data[i-coefs.length]*coefs[coefs.length]) >> shift),
+	// and copies the warm-up values data[0 : coefs.length] to result. The result array has the same length,
+	// and can be the data array itself.
 	// By FLAC parameters, each data[i] must fit in a signed 33-bit integer, each coef must fit in signed int15, and coefs.length <= 32.
 	// When these preconditions are met, they guarantee the lack of arithmetic overflow in the computation and results,
 	// and each value written back to the data array fits in a signed int53.
-	static void applyLpc(long[] data, int[] coefs, int shift) {
+	static void applyLpc(long[] data, int[] coefs, int shift, long[] result) {
 		// Check arguments and arrays strictly
 		Objects.requireNonNull(data);
 		Objects.requireNonNull(coefs);
-		if (coefs.length > 32 || shift < 0 || shift > 63)
+		Objects.requireNonNull(result);
+		if (coefs.length > 32 || shift < 0 || shift > 63 || result.length != data.length)
 			throw new IllegalArgumentException();
 		for (long x : data) {
 			x >>= 32;
@@ -258,20 +353,74 @@ final class LinearPredictiveEncoder extends SubframeEncoder {
 			long val = data[i] - (sum >> shift);
 			if ((val >> 52) != 0 && (val >> 52) != -1)  // Check if it fits in signed int53
 				throw new AssertionError();
-			data[i] = val;
+			result[i] = val;
 		}
+		if (result != data)
+			System.arraycopy(data, 0, result, 0, Math.min(coefs.length, data.length));
 	}
 	
 	
-	// Returns a new array where each result[i] = data[i] >> shift.
-	static long[] shiftRight(long[] data, int shift) {
+	// Same as above, but on data narrowed to ints, for coefficients whose absolute values sum to at most Integer.MAX_VALUE
+	// divided by the largest absolute data value, so that every prediction fits in an int. The predictions are accumulated
+	// one coefficient at a time over the whole block, in loops of int arithmetic that the JIT compiler can vectorize.
+	static void applyLpc(int[] data, int[] coefs, int shift, long[] result) {
+		// Check arguments (but not the bound on the predictions)
 		Objects.requireNonNull(data);
-		if (shift < 0 || shift > 63)
+		Objects.requireNonNull(coefs);
+		Objects.requireNonNull(result);
+		if (coefs.length < 1 || coefs.length > 32 || shift < 0 || shift > 31 || result.length != data.length)
+			throw new IllegalArgumentException();
+		
+		int n = data.length;
+		int order = coefs.length;
+		if (n > order) {
+			int[] pred = EncoderWorkspace.get().predictions(n);
+			int coef = coefs[0];
+			for (int i = order; i < n; i++)
+				pred[i] = data[i - 1] * coef;
+			for (int j = 1; j < order; j++) {
+				coef = coefs[j];
+				int off = j + 1;
+				for (int i = order; i < n; i++)
+					pred[i] += data[i - off] * coef;
+			}
+			for (int i = order; i < n; i++)
+				result[i] = (long)data[i] - (pred[i] >> shift);  // Can exceed the int range
+		}
+		for (int i = 0; i < Math.min(order, n); i++)
+			result[i] = data[i];
+	}
+	
+	
+	// Copies the given values (each fitting in a signed int33) to the given int array, wrapping if they do not fit, and
+	// returns the largest absolute value. If that is at most Integer.MAX_VALUE, then none of the values wrapped.
+	private static long narrow(long[] data, int[] result) {
+		long max = 0;
+		for (int i = 0; i < data.length; i++) {
+			long val = data[i];
+			result[i] = (int)val;
+			max = Math.max(Math.abs(val), max);
+		}
+		return max;
+	}
+	
+	
+	// Sets each result[i] = data[i] >> shift, where both arrays have the same length, and returns result.
+	static long[] shiftRight(long[] data, int shift, long[] result) {
+		Objects.requireNonNull(data);
+		Objects.requireNonNull(result);
+		if (shift < 0 || shift > 63 || result.length != data.length)
 			throw new IllegalArgumentException();
-		long[] result = new long[data.length];
 		for (int i = 0; i < data.length; i++)
 			result[i] = data[i] >> shift;
 		return result;
 	}
 	
+	
+	
+	/*---- Constants ----*/
+	
+	// How many times the gain modeled by estimateSize() is assumed, so that it rarely overestimates the size.
+	private static final double GAIN_FACTOR = 2;
+	
 }
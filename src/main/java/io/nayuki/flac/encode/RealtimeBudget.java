@@ -0,0 +1,202 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import java.util.Arrays;
+
+
+/* 
+ * Chooses the search options of each frame so that encoding keeps up with a target speed, for live streams where
+ * falling behind on hard material is worse than a larger output. The options are those of the compression levels
+ * (at the block size of the encoder), within a range of levels. The encoder reports the time it took for each frame,
+ * which is compared to the frame's budget: its duration divided by the target realtime factor. The level goes down
+ * as soon as the smoothed load (time over budget) exceeds 1, by as many levels as the load calls for, and goes up by
+ * one level when the load stays low for a few frames, leaving room for the next level to be about twice as slow.
+ * Encoding starts at the lowest level. Which levels were used, and how often the budget was exceeded, is given by
+ * getStats(). An object of this class can be used by one encoder at a time, but its stats may be read by any thread.
+ */
+public final class RealtimeBudget {
+	
+	/*---- Fields ----*/
+	
+	private final double realtimeFactor;
+	private final int minLevel;
+	private final int maxLevel;
+	
+	private int level;
+	private double load;  // Smoothed ratio of the encoding time to the budget, over the frames since the last change
+	private int framesSinceChange;
+	
+	private final long[] framesPerLevel;
+	private final long[] samplesPerLevel;
+	private long framesOverBudget;
+	private long encodeNanos;
+	private double audioSeconds;
+	
+	
+	
+	/*---- Constructors ----*/
+	
+	// Targets encoding the given multiple of realtime (e.g. 1.0 to keep up with the audio, or 4.0 to use at most a quarter
+	// of the time), moving between all the compression levels.
+	public RealtimeBudget(double realtimeFactor) {
+		this(realtimeFactor, 0, CompressionLevel.DEFAULT.level);
+	}
+	
+	
+	// Targets encoding the given multiple of realtime, moving between the given range of compression levels.
+	public RealtimeBudget(double realtimeFactor, int minLevel, int maxLevel) {
+		if (!(realtimeFactor > 0) || Double.isInfinite(realtimeFactor))
+			throw new IllegalArgumentException("Realtime factor must be positive");
+		CompressionLevel.of(minLevel);  // Check values
+		CompressionLevel.of(maxLevel);
+		if (minLevel > maxLevel)
+			throw new IllegalArgumentException();
+		this.realtimeFactor = realtimeFactor;
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+		level = minLevel;
+		framesPerLevel = new long[maxLevel + 1];
+		samplesPerLevel = new long[maxLevel + 1];
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the compression level to encode the next frame with.
+	public synchronized int getLevel() {
+		return level;
+	}
+	
+	
+	// Returns the search options to encode the next frame with.
+	synchronized SubframeEncoder.SearchOptions getSearchOptions() {
+		return CompressionLevel.of(level).searchOptions;
+	}
+	
+	
+	// Records that a frame of the given number of samples per channel, at the given sample rate, was encoded at the
+	// current level in the given time, and moves to another level for the next frames if this is called for.
+	synchronized void frameEncoded(int numSamples, int sampleRate, long nanos) {
+		double duration = (double)numSamples / sampleRate;
+		double frameLoad = nanos / (duration / realtimeFactor * 1e9);
+		framesPerLevel[level]++;
+		samplesPerLevel[level] += numSamples;
+		if (frameLoad > 1)
+			framesOverBudget++;
+		encodeNanos += nanos;
+		audioSeconds += duration;
+		
+		if (framesSinceChange == 0)
+			load = frameLoad;
+		else
+			load += (frameLoad - load) * SMOOTHING;
+		framesSinceChange++;
+		if (load > 1 && level > minLevel) {
+			// Go down enough levels to get under budget, assuming that each level saves a factor of LEVEL_COST_RATIO
+			int steps = (int)Math.ceil(Math.log(load) / Math.log(LEVEL_COST_RATIO));
+			level = Math.max(level - Math.max(steps, 1), minLevel);
+			framesSinceChange = 0;
+		} else if (load < RAISE_LOAD && framesSinceChange >= HOLD_FRAMES && level < maxLevel) {
+			level++;
+			framesSinceChange = 0;
+		}
+	}
+	
+	
+	// Returns a snapshot of the statistics of the frames encoded so far.
+	public synchronized Stats getStats() {
+		return new Stats(framesPerLevel.clone(), samplesPerLevel.clone(), framesOverBudget, encodeNanos / 1e9, audioSeconds);
+	}
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	/* 
+	 * The statistics of a RealtimeBudget at some point. Immutable, except that the arrays are not copied when read.
+	 */
+	public static final class Stats {
+		
+		// The number of frames and samples per channel encoded at each level, indexed by level.
+		public final long[] framesPerLevel;
+		public final long[] samplesPerLevel;
+		
+		// The number of frames that took longer than their budget.
+		public final long framesOverBudget;
+		
+		// The total time spent encoding frames, and the total duration of their audio.
+		public final double encodeSeconds;
+		public final double audioSeconds;
+		
+		
+		private Stats(long[] framesPerLevel, long[] samplesPerLevel, long framesOverBudget, double encodeSeconds, double audioSeconds) {
+			this.framesPerLevel = framesPerLevel;
+			this.samplesPerLevel = samplesPerLevel;
+			this.framesOverBudget = framesOverBudget;
+			this.encodeSeconds = encodeSeconds;
+			this.audioSeconds = audioSeconds;
+		}
+		
+		
+		// Returns the number of frames encoded.
+		public long getFrameCount() {
+			long result = 0;
+			for (long n : framesPerLevel)
+				result += n;
+			return result;
+		}
+		
+		
+		// Returns the overall encoding speed as a multiple of realtime (infinite if no time was measured).
+		public double getRealtimeFactor() {
+			return audioSeconds / encodeSeconds;
+		}
+		
+		
+		public String toString() {
+			return String.format("Stats(framesPerLevel=%s, framesOverBudget=%d, %.1fx realtime)",
+				Arrays.toString(framesPerLevel), framesOverBudget, getRealtimeFactor());
+		}
+		
+	}
+	
+	
+	
+	/*---- Constants ----*/
+	
+	// Weight of each new frame in the smoothed load.
+	private static final double SMOOTHING = 0.25;
+	
+	// The smoothed load below which the next level is tried, as it may be up to twice as slow.
+	private static final double RAISE_LOAD = 0.45;
+	
+	// The number of frames at a level before going up from it.
+	private static final int HOLD_FRAMES = 8;
+	
+	// How much slower each level is assumed to be than the one below, when going down
+	// (the levels measured in the README are 1.1 to 1.6 times slower than the one below, 1.36 on average).
+	private static final double LEVEL_COST_RATIO = 1.4;
+	
+}
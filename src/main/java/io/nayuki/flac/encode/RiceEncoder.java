@@ -36,7 +36,9 @@ final class RiceEncoder {
 	// Each value in that subrange of data must fit in a signed 53-bit integer. The result is packed in the form
 	// ((bestSize << 4) | bestOrder), where bestSize is an unsigned integer and bestOrder is a uint4.
 	// Note that the partition orders searched, and hence the resulting bestOrder, are in the range [0, maxPartOrder].
-	public static long computeBestSizeAndOrder(long[] data, int warmup, int maxPartOrder) {
+	// If params is not null (and has a length of at least data.length), then params[i] is set to the parameter
+	// that encode() chooses for partition i of the best order, so that the choice need not be made again.
+	public static long computeBestSizeAndOrder(long[] data, int warmup, int maxPartOrder, int[] params) {
 		// Check arguments strictly
 		Objects.requireNonNull(data);
 		if (warmup < 0 || warmup > data.length)
@@ -49,50 +51,138 @@ final class RiceEncoder {
 				throw new IllegalArgumentException();
 		}
 		
+		// Gather the statistics of the finest partitions, then search from there
+		int order = getMaxPartitionOrder(data.length, warmup, maxPartOrder);
+		int numPartitions = 1 << order;
+		int partSize = data.length >>> order;
+		EncoderWorkspace ws = EncoderWorkspace.get();
+		long[] escapeOr = ws.escapeOr(numPartitions)[0];
+		long[] bitsAtParam = ws.bitsAtParam(numPartitions)[0];
+		for (int j = 0; j < numPartitions; j++)
+			accumulate(data, Math.max(j * partSize, warmup), (j + 1) * partSize, j, escapeOr, bitsAtParam);
+		return computeBestSizeAndOrder(escapeOr, bitsAtParam, data.length, warmup, order, params);
+	}
+	
+	
+	// Returns the highest partition order in [0, maxPartOrder] that is valid for len values of which the
+	// first warmup are not coded: the length must divide evenly, and no partition may be smaller than warmup.
+	// Every lower order is then valid too.
+	static int getMaxPartitionOrder(int len, int warmup, int maxPartOrder) {
+		for (int order = maxPartOrder; order > 0; order--) {
+			int partSize = len >>> order;
+			if ((partSize << order) == len && partSize >= warmup)
+				return order;
+		}
+		return 0;
+	}
+	
+	
+	// Sets the statistics of partition j from the values data[start : end]: escapeOr[j] is the bitwise OR of the
+	// magnitudes (which gives the width of an escape code), and bitsAtParam[param + j * 16] for each parameter in
+	// [0, 14] is the sum of the zigzag-mapped values shifted right by the parameter (the unary parts of the Rice codes).
+	// The sums are kept in local variables rather than the array, so that the loop is free of memory dependencies.
+	static void accumulate(long[] data, int start, int end, int j, long[] escapeOr, long[] bitsAtParam) {
+		long or = 0;
+		long s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+		long s8 = 0, s9 = 0, s10 = 0, s11 = 0, s12 = 0, s13 = 0, s14 = 0;
+		for (int i = start; i < end; i++) {
+			long val = data[i];
+			or |= val ^ (val >> 63);
+			val = (val << 1) ^ (val >> 63);
+			s0  += val;
+			s1  += val >>>  1;
+			s2  += val >>>  2;
+			s3  += val >>>  3;
+			s4  += val >>>  4;
+			s5  += val >>>  5;
+			s6  += val >>>  6;
+			s7  += val >>>  7;
+			s8  += val >>>  8;
+			s9  += val >>>  9;
+			s10 += val >>> 10;
+			s11 += val >>> 11;
+			s12 += val >>> 12;
+			s13 += val >>> 13;
+			s14 += val >>> 14;
+		}
+		escapeOr[j] = or;
+		int k = j * 16;
+		bitsAtParam[k +  0] = s0;
+		bitsAtParam[k +  1] = s1;
+		bitsAtParam[k +  2] = s2;
+		bitsAtParam[k +  3] = s3;
+		bitsAtParam[k +  4] = s4;
+		bitsAtParam[k +  5] = s5;
+		bitsAtParam[k +  6] = s6;
+		bitsAtParam[k +  7] = s7;
+		bitsAtParam[k +  8] = s8;
+		bitsAtParam[k +  9] = s9;
+		bitsAtParam[k + 10] = s10;
+		bitsAtParam[k + 11] = s11;
+		bitsAtParam[k + 12] = s12;
+		bitsAtParam[k + 13] = s13;
+		bitsAtParam[k + 14] = s14;
+	}
+	
+	
+	// Merges the statistics of each pair of adjacent partitions, halving the given number of partitions in place.
+	static void halvePartitions(long[] escapeOr, long[] bitsAtParam, int numPartitions) {
+		for (int i = 0; i < numPartitions / 2; i++) {
+			int j = i << 1;
+			escapeOr[i] = escapeOr[j] | escapeOr[j + 1];
+			for (int param = 0; param < 15; param++)
+				bitsAtParam[param + i * 16] = bitsAtParam[param + j * 16] + bitsAtParam[param + (j + 1) * 16];
+		}
+	}
+	
+	
+	// Same as above, but from the statistics of the values data[warmup : len] already gathered by accumulate()
+	// at the given partition order (as from getMaxPartitionOrder()), which searching overwrites.
+	static long computeBestSizeAndOrder(long[] escapeOr, long[] bitsAtParam, int len, int warmup, int maxPartOrder, int[] params) {
+		if (params != null && params.length < len)
+			throw new IllegalArgumentException();
+		
+		// Add the terminating bit and the low bits of each Rice code
+		int partSize = len >>> maxPartOrder;
+		for (int i = 0; i < 1 << maxPartOrder; i++) {
+			long count = partSize - (i == 0 ? warmup : 0);
+			for (int param = 0; param < 15; param++)
+				bitsAtParam[param + i * 16] += count * (1 + param);
+		}
+		
 		long bestSize = Integer.MAX_VALUE;
 		int bestOrder = -1;
-		
-		int[] escapeBits = null;
-		int[] bitsAtParam = null;
-		for (int order = maxPartOrder; order >= 0; order--) {
-			int partSize = data.length >>> order;
-			if ((partSize << order) != data.length || partSize < warmup)
-				continue;
+		int[] orderParams = params != null ? EncoderWorkspace.get().riceParams(1 << maxPartOrder) : null;
+		for (int order = maxPartOrder; order >= 0; order--, partSize <<= 1) {
 			int numPartitions = 1 << order;
+			if (order < maxPartOrder)
+				halvePartitions(escapeOr, bitsAtParam, numPartitions << 1);
 			
-			if (escapeBits == null) {  // And bitsAtParam == null
-				escapeBits = new int[numPartitions];
-				bitsAtParam = new int[numPartitions * 16];
-				for (int i = warmup; i < data.length; i++) {
-					int j = i / partSize;
-					long val = data[i];
-					escapeBits[j] = Math.max(65 - Long.numberOfLeadingZeros(val ^ (val >> 63)), escapeBits[j]);
-					val = (val >= 0) ? (val << 1) : (((-val) << 1) - 1);
-					for (int param = 0; param < 15; param++, val >>>= 1)
-						bitsAtParam[param + j * 16] += val + 1 + param;
-				}
-			} else {  // Both arrays are non-null
-				// Logically halve the size of both arrays (but without reallocating to the true new size)
-				for (int i = 0; i < numPartitions; i++) {
-					int j = i << 1;
-					escapeBits[i] = Math.max(escapeBits[j], escapeBits[j + 1]);
-					for (int param = 0; param < 15; param++)
-						bitsAtParam[param + i * 16] = bitsAtParam[param + j * 16] + bitsAtParam[param + (j + 1) * 16];
-				}
-			}
-			
+			// Choose like computeBestSizeAndParam(): the escape code on ties, else the lowest parameter
 			long size = 4 + (4 << order);
 			for (int i = 0; i < numPartitions; i++) {
-				int min = Integer.MAX_VALUE;
-				if (escapeBits[i] <= 31)
-					min = 5 + escapeBits[i] * (partSize - (i == 0 ? warmup : 0));
-				for (int param = 0; param < 15; param++)
-					min = Math.min(bitsAtParam[param + i * 16], min);
+				long min = Long.MAX_VALUE;
+				int minParam = -1;
+				int escapeBits = 65 - Long.numberOfLeadingZeros(escapeOr[i]);
+				if (escapeBits <= 31) {
+					min = 5 + escapeBits * (partSize - (i == 0 ? warmup : 0));
+					minParam = 16 + escapeBits;
+				}
+				for (int param = 0; param < 15; param++) {
+					if (bitsAtParam[param + i * 16] < min) {
+						min = bitsAtParam[param + i * 16];
+						minParam = param;
+					}
+				}
 				size += min;
+				if (orderParams != null)
+					orderParams[i] = minParam;
 			}
 			if (size < bestSize) {
 				bestSize = size;
 				bestOrder = order;
+				if (params != null)
+					System.arraycopy(orderParams, 0, params, 0, numPartitions);
 			}
 		}
 		
@@ -152,9 +242,10 @@ final class RiceEncoder {
 	
 	/*---- Functions for encoding data ---*/
 	
-	// Encodes the sequence of values data[warmup : data.length] with an appropriately chosen order and Rice parameters.
+	// Encodes the sequence of values data[warmup : data.length] with the given partition order and Rice parameters
+	// (as set by computeBestSizeAndOrder()), or appropriately chosen parameters if params is null.
 	// Each value in data must fit in a signed 53-bit integer.
-	public static void encode(long[] data, int warmup, int order, BitOutputStream out) throws IOException {
+	public static void encode(long[] data, int warmup, int order, int[] params, BitOutputStream out) throws IOException {
 		// Check arguments strictly
 		Objects.requireNonNull(data);
 		Objects.requireNonNull(out);
@@ -173,8 +264,10 @@ final class RiceEncoder {
 		int numPartitions = 1 << order;
 		int start = warmup;
 		int end = data.length >>> order;
+		if (params != null && params.length < numPartitions)
+			throw new IllegalArgumentException();
 		for (int i = 0; i < numPartitions; i++) {
-			int param = (int)computeBestSizeAndParam(data, start, end) & 0x3F;
+			int param = params != null ? params[i] : (int)computeBestSizeAndParam(data, start, end) & 0x3F;
 			encode(data, start, end, param, out);
 			start = end;
 			end += data.length >>> order;
@@ -184,13 +277,13 @@ final class RiceEncoder {
 	
 	// Encodes the sequence of values data[start : end] with the given Rice parameter.
 	private static void encode(long[] data, int start, int end, int param, BitOutputStream out) throws IOException {
-		assert 0 <= param && param <= 31 && data != null && out != null;
+		assert 0 <= param && param <= 47 && data != null && out != null;
 		assert 0 <= start && start <= end && end <= data.length;
 		
 		if (param < 15) {
 			out.writeInt(4, param);
 			for (int j = start; j < end; j++)
-				writeRiceSignedInt(data[j], param, out);
+				out.writeRiceSignedInt(param, data[j]);
 		} else {
 			out.writeInt(4, 15);
 			int numBits = param - 16;
@@ -200,17 +293,4 @@ final class RiceEncoder {
 		}
 	}
 	
-	
-	private static void writeRiceSignedInt(long val, int param, BitOutputStream out) throws IOException {
-		assert 0 <= param && param <= 31 && out != null;
-		assert (val >> 52) == 0 || (val >> 52) == -1;  // Fits in a signed int53
-		
-		long unsigned = val >= 0 ? val << 1 : ((-val) << 1) - 1;
-		int unary = (int)(unsigned >>> param);
-		for (int i = 0; i < unary; i++)
-			out.writeInt(1, 0);
-		out.writeInt(1, 1);
-		out.writeInt(param, (int)unsigned);
-	}
-	
 }
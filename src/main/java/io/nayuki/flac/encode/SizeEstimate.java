@@ -25,24 +25,22 @@ import java.util.Objects;
 
 
 /* 
- * Pairs an integer with an arbitrary object. Immutable structure.
+ * Pairs an integer with an arbitrary object. Immutable structure, except for the
+ * objects reused by EncoderWorkspace, which are set again for each search.
  */
 final class SizeEstimate<E> {
 	
 	/*---- Fields ----*/
 	
-	public final long sizeEstimate;  // Non-negative
-	public final E encoder;  // Not null
+	public long sizeEstimate;  // Non-negative
+	public E encoder;  // Not null
 	
 	
 	
 	/*---- Constructors ----*/
 	
 	public SizeEstimate(long size, E enc) {
-		if (size < 0)
-			throw new IllegalArgumentException();
-		sizeEstimate = size;
-		encoder = Objects.requireNonNull(enc);
+		set(size, enc);
 	}
 	
 	
@@ -58,4 +56,14 @@ final class SizeEstimate<E> {
 			return other;
 	}
 	
+	
+	// Sets both fields of this object (only for one owned by a workspace) and returns this object.
+	SizeEstimate<E> set(long size, E enc) {
+		if (size < 0)
+			throw new IllegalArgumentException();
+		sizeEstimate = size;
+		encoder = Objects.requireNonNull(enc);
+		return this;
+	}
+	
 }
@@ -28,13 +28,22 @@ import java.util.Objects;
 /* 
  * Calculates/estimates the encoded size of a subframe of audio sample data, and also performs the encoding to an output stream.
  */
-public abstract class SubframeEncoder {
+public abstract class SubframeEncoder implements Cloneable {
 	
 	/*---- Static functions ----*/
 	
 	// Computes/estimates the best way to encode the given vector of audio sample data at the given sample depth under
-	// the given search criteria, returning a size estimate plus a new encoder object associated with that size.
+	// the given search criteria, returning a size estimate plus an encoder object associated with that size. Both objects
+	// belong to a slot of the workspace of the current thread, and are only valid until the slot is claimed again by
+	// another search on this thread (see EncoderWorkspace); use copy() to keep the encoder for longer.
 	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int sampleDepth, SearchOptions opt) {
+		return computeBest(samples, sampleDepth, opt, null);
+	}
+	
+	
+	// Same as above, but if fdp is not null then it is used by the covariance method of LPC instead of
+	// computing one. It must be over the same samples array, with a maximum delta of at least opt.maxLpcOrder.
+	static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int sampleDepth, SearchOptions opt, FastDotProduct fdp) {
 		// Check arguments
 		Objects.requireNonNull(samples);
 		if (sampleDepth < 1 || sampleDepth > 33)
@@ -46,34 +55,93 @@ public abstract class SubframeEncoder {
 				throw new IllegalArgumentException();
 		}
 		
+		// The candidates are set up in the encoder objects of a slot of the workspace, where
+		// the residual of the best predictive encoder so far is kept too
+		EncoderWorkspace ws = EncoderWorkspace.get();
+		int slot = ws.claimSlot();
+		SizeEstimate<SubframeEncoder> result = ws.estimate(slot);
+		
 		// Encode with constant if possible
-		SizeEstimate<SubframeEncoder> result = ConstantEncoder.computeBest(samples, 0, sampleDepth);
-		if (result != null)
-			return result;
+		long size = ConstantEncoder.computeBest(samples, 0, sampleDepth, ws.constantEncoder(slot));
+		if (size != -1)
+			return result.set(size, ws.constantEncoder(slot));
 		
 		// Detect number of trailing zero bits
 		int shift = computeWastedBits(samples);
 		
 		// Start with verbatim as fallback
-		result = VerbatimEncoder.computeBest(samples, shift, sampleDepth);
+		SubframeEncoder best = ws.verbatimEncoder(slot);
+		long bestSize = VerbatimEncoder.computeBest(samples, shift, sampleDepth, ws.verbatimEncoder(slot));
 		
-		// Try fixed prediction encoding
-		for (int order = opt.minFixedOrder; 0 <= order && order <= opt.maxFixedOrder; order++) {
-			SizeEstimate<SubframeEncoder> temp = FixedPredictionEncoder.computeBest(
-				samples, shift, sampleDepth, order, opt.maxRiceOrder);
-			result = result.minimum(temp);
+		// Try fixed prediction encoding, all the orders at once
+		if (opt.minFixedOrder >= 0) {
+			size = FixedPredictionEncoder.computeBest(
+				samples, shift, sampleDepth, opt.minFixedOrder, opt.maxFixedOrder, opt.maxRiceOrder, ws.fixedEncoder(slot));
+			if (size != -1 && size < bestSize) {
+				best = ws.fixedEncoder(slot);
+				bestSize = size;
+				ws.keepResidual(slot);
+			}
 		}
 		
-		// Try linear predictive coding
-		FastDotProduct fdp = new FastDotProduct(samples, Math.max(opt.maxLpcOrder, 0));
-		for (int order = opt.minLpcOrder; 0 <= order && order <= opt.maxLpcOrder; order++) {
-			SizeEstimate<SubframeEncoder> temp = LinearPredictiveEncoder.computeBest(
-				samples, shift, sampleDepth, order, Math.min(opt.lpcRoundVariables, order), fdp, opt.maxRiceOrder);
-			result = result.minimum(temp);
+		// Try linear predictive coding, evaluating each order in the scratch LPC encoder
+		if (opt.lpcMethod == SearchOptions.LpcMethod.COVARIANCE) {
+			if (fdp == null && opt.minLpcOrder >= 0)
+				fdp = ws.dotProduct.set(samples, Math.max(opt.maxLpcOrder, 0));
+			LpcOrderPruning pruning = opt.lpcOrderTolerance >= 0 ? ws.lpcOrderPruning.reset(samples.length, sampleDepth, opt.lpcOrderTolerance) : null;
+			for (int order = opt.minLpcOrder; 0 <= order && order <= opt.maxLpcOrder; order++) {
+				boolean done = false;
+				if (pruning == null) {
+					size = LinearPredictiveEncoder.computeBest(
+						samples, shift, sampleDepth, order, Math.min(opt.lpcRoundVariables, order), fdp, opt.maxRiceOrder, ws.lpcEncoder());
+				} else {
+					double[] coefs = LinearPredictiveEncoder.solveLeastSquares(samples, order, fdp);
+					double error = LinearPredictiveEncoder.getPredictionError(samples, coefs, fdp);
+					if (pruning.canSkip(order, error, bestSize))
+						continue;
+					size = LinearPredictiveEncoder.computeBest(
+						samples, shift, sampleDepth, coefs, Math.min(opt.lpcRoundVariables, order), opt.maxRiceOrder, ws.lpcEncoder());
+					done = pruning.isDone(order, error, size);
+				}
+				if (size < bestSize) {
+					ws.keepLpcEncoder(slot);
+					best = ws.lpcEncoder(slot);
+					bestSize = size;
+					ws.keepResidual(slot);
+				}
+				if (done)
+					break;
+			}
+		} else if (opt.maxLpcOrder >= 1) {
+			// All the orders from one recursion, except those not shorter than the block
+			int maxOrder = Math.min(opt.maxLpcOrder, samples.length - 1);
+			LpcOrderPruning pruning = opt.lpcOrderTolerance >= 0 ? ws.lpcOrderPruning.reset(samples.length, sampleDepth, opt.lpcOrderTolerance) : null;
+			double[] errors = pruning != null ? ws.lpcErrors : null;
+			double[][] coefs = AutocorrelationLpc.computeCoefficients(samples, maxOrder, opt.lpcWindow, errors);
+			for (int order = opt.minLpcOrder; 0 <= order && order <= maxOrder; order++) {
+				if (pruning != null && pruning.canSkip(order, errors[order], bestSize))
+					continue;
+				size = LinearPredictiveEncoder.computeBest(
+					samples, shift, sampleDepth, coefs[order], Math.min(opt.lpcRoundVariables, order), opt.maxRiceOrder, ws.lpcEncoder());
+				boolean done = pruning != null && pruning.isDone(order, errors[order], size);
+				if (size < bestSize) {
+					ws.keepLpcEncoder(slot);
+					best = ws.lpcEncoder(slot);
+					bestSize = size;
+					ws.keepResidual(slot);
+				}
+				if (done)
+					break;
+			}
 		}
 		
 		// Return the encoder found with the lowest bit length
-		return result;
+		if (best != ws.verbatimEncoder(slot)) {
+			best.keptWorkspace = ws;
+			best.keptSlot = slot;
+			best.keptStamp = ws.getStamp(slot);
+		}
+		return result.set(bestSize, best);
 	}
 	
 	
@@ -99,8 +167,14 @@ public abstract class SubframeEncoder {
 	
 	/*---- Instance members ----*/
 	
-	protected final int sampleShift;  // Number of bits to shift each sample right by. In the range [0, sampleDepth].
-	protected final int sampleDepth;  // Stipulate that each audio sample fits in a signed integer of this width. In the range [1, 33].
+	protected int sampleShift;  // Number of bits to shift each sample right by. In the range [0, sampleDepth].
+	protected int sampleDepth;  // Stipulate that each audio sample fits in a signed integer of this width. In the range [1, 33].
+	
+	// Where computeBest() kept the residual of this encoder (if it is a predictive one), valid until
+	// the slot is claimed again. Null if none, in which case encode() computes the residual again.
+	private EncoderWorkspace keptWorkspace;
+	private int keptSlot;
+	private long keptStamp;
 	
 	
 	// Constructs a subframe encoder on some data array with the given right shift (wasted bits) and sample depth.
@@ -109,10 +183,33 @@ public abstract class SubframeEncoder {
 	// Subframe encoders should not retain a reference to the sample data array because the higher-level encoder may request and
 	// keep many size estimates coupled with encoder objects, but only utilize a small number of encoder objects in the end.
 	protected SubframeEncoder(int shift, int depth) {
+		reset(shift, depth);
+	}
+	
+	
+	// Constructs a subframe encoder object to be set up later by reset(), so that it can be reused for many subframes.
+	protected SubframeEncoder() {}
+	
+	
+	// Sets this encoder up for new data with the given right shift and sample depth, like the constructor above,
+	// forgetting any kept residual. Subclasses set their own fields up along with calling this.
+	protected final void reset(int shift, int depth) {
 		if (depth < 1 || depth > 33 || shift < 0 || shift > depth)
 			throw new IllegalArgumentException();
 		sampleShift = shift;
 		sampleDepth = depth;
+		keptWorkspace = null;
+	}
+	
+	
+	// Returns a new encoder object with the same settings as this one, which stays valid
+	// when this object is reused (such as one that belongs to a workspace slot).
+	public SubframeEncoder copy() {
+		try {
+			return (SubframeEncoder)clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
 	}
 	
 	
@@ -123,6 +220,16 @@ public abstract class SubframeEncoder {
 	public abstract void encode(long[] samples, BitOutputStream out) throws IOException;
 	
 	
+	// Returns the residual and Rice parameters computed for this encoder by computeBest(), if they are
+	// still kept in the workspace of the current thread and have the given length, otherwise null.
+	protected final EncoderWorkspace.Residual getKeptResidual(int len) {
+		if (keptWorkspace == null || keptWorkspace != EncoderWorkspace.get())
+			return null;
+		EncoderWorkspace.Residual result = keptWorkspace.getKeptResidual(keptSlot, keptStamp);
+		return result != null && result.values.length == len ? result : null;
+	}
+	
+	
 	// Writes the subframe header to the given output stream, based on the given
 	// type code (uint6) and this object's sampleShift field (a.k.a. wasted bits per sample).
 	protected final void writeTypeAndShift(int type, BitOutputStream out) throws IOException {
@@ -140,9 +247,7 @@ public abstract class SubframeEncoder {
 			out.writeInt(1, 0);
 		else {
 			out.writeInt(1, 1);
-			for (int i = 0; i < sampleShift - 1; i++)
-				out.writeInt(1, 0);
-			out.writeInt(1, 1);
+			out.writeUnary(sampleShift - 1);
 		}
 	}
 	
@@ -166,7 +271,64 @@ public abstract class SubframeEncoder {
 	
 	
 	
-	/*---- Helper structure ----*/
+	/*---- Helper structures ----*/
+	
+	// Decides which orders of an LPC search in increasing order can be skipped, and when to stop, by comparing each order
+	// with the best one evaluated so far (the anchor): an order is skipped if even an optimistic estimate of its size,
+	// from its least squares prediction error, cannot beat the best size found by more than the tolerance, and the search
+	// stops once a number of orders evaluated in a row are no better than the anchor, as the sizes are rising.
+	// One object is reused for the searches of a thread (in its EncoderWorkspace).
+	static final class LpcOrderPruning {
+		
+		private int length;
+		private int depth;
+		private double tolerance;
+		private int anchorOrder;
+		private long anchorSize;
+		private double anchorError;
+		private int misses;
+		
+		
+		// Starts a new search over a block of the given length and sample depth, and returns this object.
+		public LpcOrderPruning reset(int length, int depth, double tolerance) {
+			this.length = length;
+			this.depth = depth;
+			this.tolerance = tolerance;
+			anchorOrder = -1;
+			misses = 0;
+			return this;
+		}
+		
+		
+		// Tests whether the given order, whose least squares prediction has the given error energy, can be skipped
+		// when the best size found so far (by any method) is the given one.
+		public boolean canSkip(int order, double error, long bestSize) {
+			if (anchorOrder == -1)
+				return false;
+			long estimate = LinearPredictiveEncoder.estimateSize(length, depth, anchorOrder, anchorSize, anchorError, order, error);
+			return estimate * (1 + tolerance) >= bestSize;
+		}
+		
+		
+		// Records the evaluated size of the given order with the given error energy, and returns whether the search should stop.
+		public boolean isDone(int order, double error, long size) {
+			if (anchorOrder == -1 || size < anchorSize) {
+				anchorOrder = order;
+				anchorSize = size;
+				anchorError = error;
+				misses = 0;
+				return false;
+			} else
+				return ++misses >= PATIENCE;
+		}
+		
+		
+		// Number of orders evaluated in a row without improvement after which the search stops.
+		private static final int PATIENCE = 2;
+		
+	}
+	
+	
 	
 	// Represents options for how to search the encoding parameters for a subframe. It is used directly by
 	// SubframeEncoder.computeBest() and indirectly by its sub-calls. Objects of this class are immutable.
@@ -193,12 +355,49 @@ public abstract class SubframeEncoder {
 		// In the range [0, 15]. Note that the FLAC subset format requires maxRiceOrder <= 8.
 		public final int maxRiceOrder;
 		
+		// How the LPC coefficients of each order are computed. Not null.
+		public final LpcMethod lpcMethod;
+		
+		// The window applied to the samples by the autocorrelation method (unused by the covariance method). Not null.
+		public final Window lpcWindow;
+		
+		// Whether the 4 channel variants of a stereo frame share dot products computed from left and right,
+		// instead of each computing its own (only for the covariance method). This saves a quarter of that work,
+		// but makes the dot products of mid approximate, so its coefficients and the output may differ slightly.
+		public final boolean shareStereoDotProducts;
+		
+		// How many of the 4 stereo modes (independent, left-side, side-right, mid-side) get the full search, in the range
+		// [1, 4]. With fewer than 4, the modes are first ranked by a cheap estimate from low-order fixed prediction,
+		// and only the channel variants used by the best ones are searched. This trades a little compression for speed.
+		public final int stereoModes;
+		
+		// How the LPC orders are searched (for either method). If negative, every order in the range is evaluated fully.
+		// Otherwise (at least 0), the orders that cannot beat the best size found by more than this fraction (according
+		// to an optimistic estimate from the prediction error of each order) are skipped, and the search stops once
+		// the sizes are rising. The output then stays within about this fraction of the exhaustive search.
+		public final double lpcOrderTolerance;
+		
 		
 		/*-- Constructors --*/
 		
-		// Constructs a search options object based on the given values,
-		// throwing an IllegalArgumentException if and only if they are nonsensical.
+		// Constructs a search options object with the covariance method of computing LPC coefficients.
 		public SearchOptions(int minFixedOrder, int maxFixedOrder, int minLpcOrder, int maxLpcOrder, int lpcRoundVars, int maxRiceOrder) {
+			this(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVars, maxRiceOrder, LpcMethod.COVARIANCE, Window.TUKEY);
+		}
+		
+		
+		// Constructs a search options object based on the given values, without sharing stereo dot products
+		// and with all the stereo modes searched, throwing an IllegalArgumentException if and only if they are nonsensical.
+		public SearchOptions(int minFixedOrder, int maxFixedOrder, int minLpcOrder, int maxLpcOrder, int lpcRoundVars, int maxRiceOrder,
+				LpcMethod lpcMethod, Window lpcWindow) {
+			this(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVars, maxRiceOrder, lpcMethod, lpcWindow, false, 4, -1);
+		}
+		
+		
+		// Constructs a search options object based on all the given values, throwing an IllegalArgumentException
+		// if and only if they are nonsensical. The with*() methods use it to make modified copies.
+		private SearchOptions(int minFixedOrder, int maxFixedOrder, int minLpcOrder, int maxLpcOrder, int lpcRoundVars, int maxRiceOrder,
+				LpcMethod lpcMethod, Window lpcWindow, boolean shareStereoDotProducts, int stereoModes, double lpcOrderTolerance) {
 			// Check argument ranges
 			if ((minFixedOrder != -1 || maxFixedOrder != -1) &&
 					!(0 <= minFixedOrder && minFixedOrder <= maxFixedOrder && maxFixedOrder <= 4))
@@ -210,6 +409,10 @@ public abstract class SubframeEncoder {
 				throw new IllegalArgumentException();
 			if (maxRiceOrder < 0 || maxRiceOrder > 15)
 				throw new IllegalArgumentException();
+			if (stereoModes < 1 || stereoModes > 4)
+				throw new IllegalArgumentException();
+			if (Double.isNaN(lpcOrderTolerance) || Double.isInfinite(lpcOrderTolerance))
+				throw new IllegalArgumentException();
 			
 			// Copy arguments to fields
 			this.minFixedOrder = minFixedOrder;
@@ -218,6 +421,58 @@ public abstract class SubframeEncoder {
 			this.maxLpcOrder = maxLpcOrder;
 			this.lpcRoundVariables = lpcRoundVars;
 			this.maxRiceOrder = maxRiceOrder;
+			this.lpcMethod = Objects.requireNonNull(lpcMethod);
+			this.lpcWindow = Objects.requireNonNull(lpcWindow);
+			this.shareStereoDotProducts = shareStereoDotProducts;
+			this.stereoModes = stereoModes;
+			this.lpcOrderTolerance = lpcOrderTolerance;
+		}
+		
+		
+		/*-- Methods --*/
+		
+		// Returns a search options object with the same values as this one, except for sharing stereo dot products.
+		public SearchOptions withSharedStereoDotProducts(boolean share) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				lpcMethod, lpcWindow, share, stereoModes, lpcOrderTolerance);
+		}
+		
+		
+		// Returns a search options object with the same values as this one, except for the number of stereo modes searched.
+		public SearchOptions withStereoModes(int count) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				lpcMethod, lpcWindow, shareStereoDotProducts, count, lpcOrderTolerance);
+		}
+		
+		
+		// Returns a search options object with the same values as this one, except for the tolerance
+		// of pruning the LPC order search (negative for an exhaustive search).
+		public SearchOptions withLpcOrderTolerance(double tolerance) {
+			return new SearchOptions(minFixedOrder, maxFixedOrder, minLpcOrder, maxLpcOrder, lpcRoundVariables, maxRiceOrder,
+				lpcMethod, lpcWindow, shareStereoDotProducts, stereoModes, tolerance);
+		}
+		
+		
+		/*-- Enums --*/
+		
+		// Ways of computing the LPC coefficients for the orders tried.
+		public enum LpcMethod {
+			// Least squares over the samples of the block, solving a system of equations for each order.
+			// Slow for high orders (cubic in the order, for each order), but usually gives the smallest output.
+			COVARIANCE,
+			
+			// Levinson-Durbin recursion over the autocorrelation of the windowed samples,
+			// giving the coefficients of all the orders at once (quadratic in the maximum order).
+			AUTOCORRELATION,
+		}
+		
+		
+		// Apodization windows for the autocorrelation method, which taper the ends of the block.
+		public enum Window {
+			RECTANGLE,  // No tapering
+			WELCH,  // Parabola
+			HANN,  // Raised cosine over the whole block
+			TUKEY,  // Raised cosine over a quarter of the block at each end, flat in between
 		}
 		
 		
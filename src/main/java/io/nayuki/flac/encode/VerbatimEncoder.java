@@ -31,24 +31,21 @@ import java.io.IOException;
 final class VerbatimEncoder extends SubframeEncoder {
 	
 	// Computes the best way to encode the given values under the verbatim coding mode,
-	// returning an exact size plus a new encoder object associated with the input arguments.
-	public static SizeEstimate<SubframeEncoder> computeBest(long[] samples, int shift, int depth) {
-		VerbatimEncoder enc = new VerbatimEncoder(samples, shift, depth);
-		long size = 1 + 6 + 1 + shift + samples.length * depth;
-		return new SizeEstimate<SubframeEncoder>(size, enc);
+	// setting up the given encoder object for the input arguments and returning the exact size.
+	public static long computeBest(long[] samples, int shift, int depth, VerbatimEncoder enc) {
+		enc.reset(shift, depth);
+		return 1 + 6 + 1 + shift + samples.length * depth;
 	}
 	
 	
-	// Constructs a constant encoder for the given data, right shift, and sample depth.
-	public VerbatimEncoder(long[] samples, int shift, int depth) {
-		super(shift, depth);
-	}
+	// Constructs a verbatim encoder to be set up by computeBest().
+	public VerbatimEncoder() {}
 	
 	
 	// Encodes the given vector of audio sample data to the given bit output stream using
 	// the this encoding method (and the superclass fields sampleShift and sampleDepth).
 	// This requires the data array to have the same values (but not necessarily
-	// the same object reference) as the array that was passed to the constructor.
+	// the same object reference) as the array that was passed to computeBest().
 	public void encode(long[] samples, BitOutputStream out) throws IOException {
 		writeTypeAndShift(1, out);
 		for (long val : samples)
@@ -1,14 +1,16 @@
 package org.xlengua.audio.converters;
 
 import fr.delthas.javamp3.Sound;
+import io.nayuki.flac.common.SampleBuffer;
 import io.nayuki.flac.common.StreamInfo;
 import io.nayuki.flac.encode.BitOutputStream;
+import io.nayuki.flac.encode.CompressionLevel;
 import io.nayuki.flac.encode.FlacEncoder;
-import io.nayuki.flac.encode.SubframeEncoder;
+import io.nayuki.flac.encode.FlacStreamEncoder;
+import io.nayuki.flac.encode.RandomAccessFileOutputStream;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
 
 /**
@@ -22,41 +24,32 @@ public class Builder {
 
     @FunctionalInterface
     private interface ConverterFunc {
-        void apply(List<Integer>[] samples, int blockSize, OutputStream out) throws IOException;
+        void apply(SampleBuffer[] samples, int blockSize, OutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface StreamConverterFunc {
+        void apply(int blockSize, OutputStream out) throws IOException;
     }
 
     private InputStream input;
     private int maxSize;
     private StreamInfo streamInfo;
     private Sound sourceMp3;
+    // samples are pulled from the source while converting (not kept in memory)
+    private boolean streaming;
     // in-memory data
-    private List<Integer>[] samples;
-    private Function<InputStream, List<Integer>[]> decoder;
+    private SampleBuffer[] samples;
+    private Function<InputStream, SampleBuffer[]> decoder;
     private ConverterFunc converter;
+    private StreamConverterFunc streamConverter;
     // transformations parameters
     private Integer targetSampleDepth;
-    private Integer transformDepthDiff;
-    public Function<Integer, Integer> transformSampleDepth;
     private Integer targetSampleRate;
     private Integer targetChannels;
-
-     /**
-     * Downsampling task composites with sample scaling (if defined).
-     */
-// TODO add low-pass filter and approximation for downsample/upsample and rates ratio like 2/3
-    public Function<List<Integer>, List<Integer>> changeSampleDepthAndRate = samples -> {
-        Function<Integer, Integer> composite = samples::get;
-        if (this.targetSampleDepth != null) {
-            composite = composite.andThen(this.transformSampleDepth);
-        }
-
-        int downscale = streamInfo.sampleRate / this.targetSampleRate;
-        List<Integer> result = new ArrayList<>(samples.size() / downscale);
-        for (int i = 0, j = 0; i < samples.size(); i += downscale, j++) {
-            result.add(j, composite.apply(i));
-        }
-        return result;
-    };
+    // encoding parameters
+    private CompressionLevel compressionLevel = CompressionLevel.DEFAULT;
+    private ExecutorService executor;
 
 
     public Builder() {
@@ -82,19 +75,40 @@ public class Builder {
      * @throws IOException
      */
     public Builder sourceMp3(InputStream in, int maxSize) throws IOException {
-        this.input = in;
         this.maxSize = maxSize;
+        openMp3(in);
+
+        this.decoder = this::mp3ToRaw;
+        this.samples = this.decoder.apply(sourceMp3);
+
+        return this;
+    }
+
+    /**
+     * Opens mp3-stream for streaming conversion: only stream info is defined here,
+     * raw samples are decoded block by block while {@link #convert(OutputStream) converting},
+     * so the memory used does not depend on the length of the stream.
+     * The total amount of samples stays unknown (0) until the conversion is done.
+     *
+     * @param in mp3 stream
+     * @return the same builder
+     * @throws IOException
+     */
+    public Builder sourceMp3Stream(InputStream in) throws IOException {
+        openMp3(in);
+        this.streaming = true;
+
+        return this;
+    }
+
+    private void openMp3(InputStream in) throws IOException {
+        this.input = in;
         this.streamInfo = new StreamInfo();
 
         this.sourceMp3 = new Sound(new BufferedInputStream(this.input));
         this.streamInfo.sampleRate = Math.round(sourceMp3.getAudioFormat().getSampleRate());
         this.streamInfo.numChannels = sourceMp3.getAudioFormat().getChannels();
         this.streamInfo.sampleDepth = sourceMp3.getAudioFormat().getSampleSizeInBits();
-
-        this.decoder = this::mp3ToRaw;
-        this.samples = this.decoder.apply(sourceMp3);
-
-        return this;
     }
 
     /**
@@ -110,31 +124,30 @@ public class Builder {
 
         if (sampleDepth != streamInfo.sampleDepth) {
             this.targetSampleDepth = sampleDepth;
-            this.transformDepthDiff = Math.abs(targetSampleDepth - streamInfo.sampleDepth);
-            this.transformSampleDepth = sampleDepth < streamInfo.sampleDepth ?
-                    sample -> sample >> this.transformDepthDiff : sample -> sample << this.transformDepthDiff;
         }
 
         return this;
     }
 
     /**
-     * Defines rate downsampling.
+     * Defines rate downsampling, for any ratio of rates (e.g. 44100 -> 16000 Hz).
      *
-     * @param sampleRate new sample rate
+     * @param sampleRate new sample rate, in (0..source rate]
      * @return the same builder
      */
     public Builder downSampleRate(int sampleRate) {
-        if (this.streamInfo.sampleRate % sampleRate != 0) {
+        if (sampleRate <= 0 || sampleRate > this.streamInfo.sampleRate) {
             throw new IllegalArgumentException();
         }
-        this.targetSampleRate = sampleRate;
+        if (sampleRate != this.streamInfo.sampleRate) {
+            this.targetSampleRate = sampleRate;
+        }
 
         return this;
     }
 
     /**
-     * Cutting number of channels to 1.
+     * Cutting number of channels to 1 (averaging all the source channels).
      *
      * @return the same builder
      */
@@ -143,6 +156,30 @@ public class Builder {
         return this;
     }
 
+    /**
+     * Sets the compression level of the target, from 0 (fastest) to 8 (smallest, by default).
+     * The level defines the block size and how hard the encoder searches, see {@link CompressionLevel}.
+     *
+     * @param level compression level in [0..8]
+     * @return the same builder
+     */
+    public Builder compressionLevel(int level) {
+        this.compressionLevel = CompressionLevel.of(level);
+        return this;
+    }
+
+    /**
+     * Encodes the target frames in parallel on the given executor (e.g. a {@link java.util.concurrent.ForkJoinPool}).
+     * The target stream is the same as encoded sequentially.
+     *
+     * @param executor executor to run encoding tasks, or null to encode sequentially (by default)
+     * @return the same builder
+     */
+    public Builder parallel(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
     /**
      * Setting up the target as a WAV-formatted stream.
      *
@@ -160,18 +197,22 @@ public class Builder {
      */
     public Builder targetFlac() {
         this.converter = this::rawToFlac;
+        this.streamConverter = this::streamToFlac;
 
         return this;
     }
 
     /**
      * Stream info for the source (mp3) stream.
+     * In streaming mode the source stays open (to be converted later).
      *
      * @return stream info
      * @throws IOException
      */
     public StreamInfo streamInfo() throws IOException {
-        this.sourceMp3.close();
+        if (!this.streaming) {
+            this.sourceMp3.close();
+        }
 
         return this.streamInfo;
     }
@@ -180,78 +221,99 @@ public class Builder {
      * Converts to target-encoded stream in-memory samples read,
      * applying all transformations defined before by {@link #mono() mono},
      * {@link #sampleDepth(int) sampleDepth}, {@link #downSampleRate(int) downSampleRate}, etc.
+     * <p>
+     * In streaming mode (see {@link #sourceMp3Stream(InputStream) sourceMp3Stream}) the samples
+     * are decoded, transformed and encoded block by block instead. The target metadata is rewritten
+     * at the end only if the target is a {@link RandomAccessFileOutputStream}, otherwise total amount
+     * of samples, frame sizes and MD5 stay unknown in the target metadata (but not in the stream info returned).
      *
      * @param out target stream
      * @return stream info of encoded target
      * @throws IOException
      */
     public StreamInfo convert(OutputStream out) throws IOException {
-        transform();
-        this.converter.apply(samples, BLOCK_SIZE, out);
+        if (this.streaming) {
+            this.streamConverter.apply(this.compressionLevel.blockSize, out);
+        } else {
+            transform();
+            this.converter.apply(samples, this.compressionLevel.blockSize, out);
+        }
         this.sourceMp3.close();
 
         return this.streamInfo;
     }
 
+    private SampleTransform newTransform() {
+        return new SampleTransform(
+                streamInfo.numChannels, streamInfo.sampleRate, streamInfo.sampleDepth,
+                targetChannels != null ? targetChannels : streamInfo.numChannels,
+                targetSampleRate != null ? targetSampleRate : streamInfo.sampleRate,
+                targetSampleDepth != null ? targetSampleDepth : streamInfo.sampleDepth);
+    }
+
     private void transform() {
         int numChannels =
                 this.targetChannels != null ?
                         this.targetChannels : this.streamInfo.numChannels;
+        if (this.targetSampleRate == null && this.targetSampleDepth == null
+                && numChannels == this.streamInfo.numChannels) {
+            return;
+        }
 
-        if (this.targetSampleRate != null) {
-            Function<Integer, List<Integer>> transform = ch -> this.samples[ch];
-            transform = transform.andThen(this.changeSampleDepthAndRate);
-            for (int ch = 0; ch < numChannels; ch++) {
-                this.samples[ch] = transform.apply(ch);
-            }
-
-            if (this.targetSampleDepth != null) {
-                this.streamInfo.sampleDepth = this.targetSampleDepth;
+        // one pass over the source samples, block by block
+        SampleTransform transform = newTransform();
+        int sampleRate = this.targetSampleRate != null ? this.targetSampleRate : this.streamInfo.sampleRate;
+        int sampleDepth = this.targetSampleDepth != null ? this.targetSampleDepth : this.streamInfo.sampleDepth;
+        int numSamples = this.samples[0].size();
+        int[][] block = new int[this.streamInfo.numChannels][BLOCK_SIZE];
+        int[][] transformed = new int[numChannels][transform.maxOutputLength(BLOCK_SIZE)];
+        SampleBuffer[] result = new SampleBuffer[numChannels];
+        for (int ch = 0; ch < numChannels; ch++) {
+            result[ch] = SampleBuffer.create(sampleDepth,
+                    (int) ((long) numSamples * sampleRate / this.streamInfo.sampleRate + 1));
+        }
+        for (int pos = 0; pos < numSamples; pos += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, numSamples - pos);
+            for (int ch = 0; ch < block.length; ch++) {
+                this.samples[ch].copyTo(pos, block[ch], 0, n);
             }
-            this.streamInfo.sampleRate = this.targetSampleRate;
-            this.streamInfo.numSamples = this.samples[0].size();
-        } else if (this.targetSampleDepth != null) {
+            int count = transform.process(block, 0, n, transformed, 0);
             for (int ch = 0; ch < numChannels; ch++) {
-                Function<Integer, Integer> transform = this.samples[ch]::get;
-                transform = transform.andThen(this.transformSampleDepth);
-                for (int i = 0; i < streamInfo.numSamples; i++) {
-                    samples[ch].set(i, transform.apply(i));
-                }
+                result[ch].addAll(transformed[ch], 0, count);
             }
-            streamInfo.sampleDepth = this.targetSampleDepth;
         }
-
-        if (numChannels < streamInfo.numChannels) {
-            List<Integer>[] reduced = new List[numChannels];
-            for (int ch = 0; ch < numChannels; ch++) {
-                reduced[ch] = this.samples[ch];
-            }
-            this.samples = reduced;
-            streamInfo.numChannels = numChannels;
+        int count = transform.flush(transformed, 0);
+        for (int ch = 0; ch < numChannels; ch++) {
+            result[ch].addAll(transformed[ch], 0, count);
         }
+
+        this.samples = result;
+        this.streamInfo.numChannels = numChannels;
+        this.streamInfo.sampleRate = sampleRate;
+        this.streamInfo.sampleDepth = sampleDepth;
+        this.streamInfo.numSamples = result[0].size();
+        // the hash of the source samples does not match the transformed ones
+        this.streamInfo.md5Hash = sampleDepth % 8 == 0 ? StreamInfo.getMd5Hash(result, sampleDepth) : new byte[16];
     }
 
-    private List<Integer>[] mp3ToRaw(InputStream in) {
+    private SampleBuffer[] mp3ToRaw(InputStream in) {
         int sampleDepth = this.streamInfo.sampleDepth;
-        int bytesPerSample = sampleDepth / 8;
-        // convert
-        List<Integer>[] samples = new List[2];
-        for (int i = 0; i < this.streamInfo.numChannels; i++) {
-            samples[i] = new ArrayList<>(this.maxSize);
+        int numChannels = this.streamInfo.numChannels;
+        int frameSize = numChannels * (sampleDepth / 8);
+        // convert, reading the raw bytes a block at a time
+        SampleBuffer[] samples = new SampleBuffer[numChannels];
+        for (int ch = 0; ch < numChannels; ch++) {
+            samples[ch] = SampleBuffer.create(sampleDepth, this.maxSize);
         }
-        outer:
-        for (;;) {
-            for (int ch = 0; ch < this.streamInfo.numChannels; ch++) {
-                try {
-                    int val = readLittleUint(in, bytesPerSample);
-                    if (sampleDepth == 8)
-                        val -= 128;
-                    else
-                        val = (val << (32 - sampleDepth)) >> (32 - sampleDepth);
-                    samples[ch].add(val);
-                } catch (IOException e) {
-                    break outer;
-                }
+        SampleTransform decode = new SampleTransform(numChannels, this.streamInfo.sampleRate, sampleDepth,
+                numChannels, this.streamInfo.sampleRate, sampleDepth);
+        byte[] raw = new byte[BLOCK_SIZE * frameSize];
+        int[][] block = new int[numChannels][BLOCK_SIZE];
+        for (int len = raw.length; len == raw.length; ) {
+            len = readFully(in, raw);
+            int count = decode.process(raw, 0, len / frameSize, block, 0);
+            for (int ch = 0; ch < numChannels; ch++) {
+                samples[ch].addAll(block[ch], 0, count);
             }
         }
 
@@ -261,7 +323,7 @@ public class Builder {
         return samples;
     }
 
-    private void rawToFlac(List<Integer>[] samples, int blockSize, OutputStream out) throws IOException {
+    private void rawToFlac(SampleBuffer[] samples, int blockSize, OutputStream out) throws IOException {
         // Encode all frames
         SeekableByteArrayOutputStream memOut = new SeekableByteArrayOutputStream();
         BitOutputStream bOut = new BitOutputStream(memOut);
@@ -270,27 +332,106 @@ public class Builder {
         this.streamInfo.write(true, bOut);
 
         // streamInfo mutated (setting up the metadata)
-        new FlacEncoder(this.streamInfo, samples, blockSize, SubframeEncoder.SearchOptions.SUBSET_BEST, bOut);
+        new FlacEncoder(this.streamInfo, samples, blockSize, this.compressionLevel.searchOptions, bOut, this.executor);
         bOut.flush();
 
         // rewrite the stream info metadata block, which is
         // located at a fixed offset in the file by definition
         memOut.seek(4);
         this.streamInfo.write(true, bOut);
+        bOut.flush();
         memOut.writeTo(out);
     }
 
-    // Reads n bytes (0 <= n <= 4) from the given stream, interpreting
-    // them as an unsigned integer encoded in little endian.
-    private static int readLittleUint(InputStream in, int n) throws IOException {
-        int result = 0;
-        for (int i = 0; i < n; i++) {
-            int b = in.read();
-            if (b == -1)
-                throw new EOFException();
-            result |= b << (i * 8);
+    private void streamToFlac(int blockSize, OutputStream out) throws IOException {
+        Mp3BlockSource source = new Mp3BlockSource(blockSize);
+        // metadata is written with values known so far, and rewritten at the end if the target is seekable
+        FlacStreamEncoder encoder = new FlacStreamEncoder(out, source.sampleRate, source.numChannels, source.sampleDepth,
+                blockSize, this.compressionLevel.searchOptions, this.executor);
+
+        int[][] block = new int[source.numChannels][blockSize];
+        for (int n; (n = source.read(block)) > 0; ) {
+            encoder.write(block, 0, n);
+        }
+        this.streamInfo = encoder.finish();
+    }
+
+    // Reads from the given stream until the buffer is full or the stream ends,
+    // returning the number of bytes read (less than the buffer length only at the end).
+    // The decoder fails at the end of some streams: that counts as the end, keeping all the bytes read so far,
+    // so the caller must not read again after a short read.
+    private static int readFully(InputStream in, byte[] buf) {
+        int len = 0;
+        try {
+            for (int n; len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1; ) {
+                len += n;
+            }
+        } catch (IOException e) {
+            // the end of the stream
+        }
+        return len;
+    }
+
+    /**
+     * Pulls raw samples from the mp3-decoder block by block, applying the transformations on the fly.
+     */
+    private final class Mp3BlockSource {
+        private final int frameSize;
+        private final int numChannels;
+        private final int sampleRate;
+        private final int sampleDepth;
+        private final SampleTransform transform;
+        private final byte[] raw;
+        // target samples left over from the previous block (when resampling)
+        private final int[][] pending;
+        private int pendingLen;
+        private boolean ended;
+
+        Mp3BlockSource(int blockSize) {
+            this.frameSize = streamInfo.numChannels * (streamInfo.sampleDepth / 8);
+            this.numChannels = targetChannels != null ? targetChannels : streamInfo.numChannels;
+            this.sampleRate = targetSampleRate != null ? targetSampleRate : streamInfo.sampleRate;
+            this.sampleDepth = targetSampleDepth != null ? targetSampleDepth : streamInfo.sampleDepth;
+            this.transform = newTransform();
+            this.raw = new byte[blockSize * frameSize];
+            this.pending = transform.isResampling() ? new int[numChannels][blockSize
+                    + transform.maxOutputLength(blockSize) + transform.maxOutputLength(0)] : null;
+        }
+
+        // Fills the whole block with the next target samples, unless the end of the source is reached
+        // (then returns fewer, 0 meaning that nothing is left).
+        int read(int[][] block) {
+            if (pending != null) {
+                return readResampled(block);
+            }
+            if (ended) {
+                return 0;
+            }
+            int n = readFully(sourceMp3, raw) / frameSize;
+            ended = n < block[0].length;
+            return transform.process(raw, 0, n, block, 0);
+        }
+
+        // Transforms source blocks into the pending buffers until a full block (or the end) is there.
+        private int readResampled(int[][] block) {
+            int blockSize = block[0].length;
+            while (pendingLen < blockSize && !ended) {
+                int n = readFully(sourceMp3, raw) / frameSize;
+                ended = n < blockSize;
+                pendingLen += transform.process(raw, 0, n, pending, pendingLen);
+                if (ended) {
+                    pendingLen += transform.flush(pending, pendingLen);
+                }
+            }
+
+            int count = Math.min(blockSize, pendingLen);
+            for (int ch = 0; ch < numChannels; ch++) {
+                System.arraycopy(pending[ch], 0, block[ch], 0, count);
+                System.arraycopy(pending[ch], count, pending[ch], 0, pendingLen - count);
+            }
+            pendingLen -= count;
+            return count;
         }
-        return result;
     }
 
 
@@ -0,0 +1,243 @@
+package org.xlengua.audio.converters;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for one channel, for any ratio of rates.
+ * <p>
+ * The rates ratio is reduced to L/M (upsampling by L, then downsampling by M) and the signal is
+ * low-pass filtered by a windowed-sinc FIR with cutoff below the lower of both Nyquist frequencies.
+ * The filter is precomputed as a bank of L phases, so each output sample costs only one dot product
+ * over the input history, and the upsampled signal is never built. For nearly coprime rates (such as
+ * 44100 and 44099) L is too large for that: the bank then holds a fixed number of evenly spaced phases,
+ * and each output sample is interpolated linearly between the dot products of the two nearest ones.
+ * <p>
+ * The filter delay is compensated: output sample k is aligned to input time k * M / L.
+ * Input may be fed in pieces of any size, the result does not depend on how the input is split.
+ * After all the input is {@link #process(int[], int, int, int[], int) processed}, {@link #flush(int[], int) flush}
+ * produces the tail, so that the output length is exactly ceil(inputLength * L / M).
+ */
+public final class Resampler {
+    // zero crossings of the sinc on each side of the filter center
+    private static final int ZERO_CROSSINGS = 16;
+    // cutoff as a fraction of the lower Nyquist frequency, leaving room for the transition band
+    private static final double ROLLOFF = 0.9;
+    // input samples buffered at most per piece (besides the filter history)
+    private static final int CHUNK_SIZE = 4096;
+    // phases kept in the bank at most (more than the L of any common pair of audio rates)
+    private static final int MAX_PHASES = 1024;
+
+    private final int upFactor;    // L
+    private final int downFactor;  // M
+    private final int taps;        // filter taps per phase
+    // bank[p][tap] is the filter of the phase p / phases (in input samples), taps ordered to match the input history;
+    // phases == L unless interpolated, then the bank has one more entry, the phase 1 for interpolating up to it
+    private final float[][] bank;
+    private final int phases;
+    private final boolean interpolated;
+    private final int minValue;
+    private final int maxValue;
+
+    // input history: buf[0 : bufLen], the next output starts its dot product at buf[pos]
+    private final float[] buf;
+    private int bufLen;
+    private int pos;
+    private int phase;
+    private long inputCount;
+    private long outputCount;
+
+    /**
+     * Creates resampler with unit gain.
+     *
+     * @param sourceRate input sample rate in Hz (positive)
+     * @param targetRate output sample rate in Hz (positive)
+     * @param sampleDepth bit depth of the output samples, in [1..32] (the output is clipped to it)
+     */
+    public Resampler(int sourceRate, int targetRate, int sampleDepth) {
+        this(sourceRate, targetRate, sampleDepth, 1.0);
+    }
+
+    /**
+     * Creates resampler scaling the signal by the given gain (folded into the filter).
+     *
+     * @param sourceRate input sample rate in Hz (positive)
+     * @param targetRate output sample rate in Hz (positive)
+     * @param sampleDepth bit depth of the output samples, in [1..32] (the output is clipped to it)
+     * @param gain factor applied to all the output samples
+     */
+    public Resampler(int sourceRate, int targetRate, int sampleDepth, double gain) {
+        if (sourceRate <= 0 || targetRate <= 0 || sampleDepth < 1 || sampleDepth > 32) {
+            throw new IllegalArgumentException();
+        }
+        int gcd = gcd(sourceRate, targetRate);
+        this.upFactor = targetRate / gcd;
+        this.downFactor = sourceRate / gcd;
+        this.minValue = (int) (-1L << (sampleDepth - 1));
+        this.maxValue = (int) ((1L << (sampleDepth - 1)) - 1);
+
+        // cutoff in cycles per input sample
+        double cutoff = 0.5 * ROLLOFF * Math.min(1.0, (double) upFactor / downFactor);
+        int halfTaps = (int) Math.ceil(ZERO_CROSSINGS / (2 * cutoff));
+        this.taps = 2 * halfTaps;
+        this.interpolated = upFactor > MAX_PHASES;
+        this.phases = interpolated ? MAX_PHASES : upFactor;
+        this.bank = new float[interpolated ? phases + 1 : phases][taps];
+        for (int p = 0; p < bank.length; p++) {
+            for (int j = 0; j < taps; j++) {
+                // distance in input samples from the output time to the input under this tap
+                double t = (double) p / phases + (halfTaps - 1) - j;
+                bank[p][j] = (float) (2 * cutoff * sinc(2 * cutoff * t) * blackman(t / (halfTaps + 1)));
+            }
+        }
+        // normalize each phase to the exact DC gain, so that constant signals stay constant
+        for (float[] h : bank) {
+            double sum = 0;
+            for (float c : h) {
+                sum += c;
+            }
+            for (int j = 0; j < taps; j++) {
+                h[j] = (float) (h[j] * gain / sum);
+            }
+        }
+
+        this.buf = new float[taps + CHUNK_SIZE];
+        reset();
+    }
+
+    /**
+     * Forgets all the input, to start another stream with the same parameters.
+     */
+    public void reset() {
+        // the first output is centered on the first input sample, preceded by silence
+        Arrays.fill(buf, 0f);
+        bufLen = taps / 2 - 1;
+        pos = 0;
+        phase = 0;
+        inputCount = 0;
+        outputCount = 0;
+    }
+
+    /**
+     * Upper bound of the number of output samples produced by
+     * {@link #process(int[], int, int, int[], int) process} or {@link #flush(int[], int) flush}
+     * for the given number of input samples.
+     *
+     * @param inputLength number of input samples
+     * @return maximum number of output samples
+     */
+    public int maxOutputLength(int inputLength) {
+        return (int) (((long) inputLength + taps) * upFactor / downFactor + 1);
+    }
+
+    /**
+     * Feeds input samples in[off : off + len] and writes the output samples ready so far.
+     *
+     * @param in input samples
+     * @param off offset of the first input sample
+     * @param len number of input samples
+     * @param out output array, with room for at least {@link #maxOutputLength(int) maxOutputLength(len)} samples
+     * @param outOff offset to write the first output sample at
+     * @return number of output samples written
+     */
+    public int process(int[] in, int off, int len, int[] out, int outOff) {
+        if (off < 0 || len < 0 || len > in.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        int count = 0;
+        while (len > 0) {
+            int n = Math.min(buf.length - bufLen, len);
+            for (int i = 0; i < n; i++) {
+                buf[bufLen + i] = in[off + i];
+            }
+            bufLen += n;
+            off += n;
+            len -= n;
+            inputCount += n;
+            count += filter(out, outOff + count, Long.MAX_VALUE);
+        }
+        return count;
+    }
+
+    /**
+     * Ends the stream: writes the remaining output samples, as if the input was followed by silence.
+     * The resampler has to be {@link #reset() reset} before feeding it again.
+     *
+     * @param out output array, with room for at least {@link #maxOutputLength(int) maxOutputLength(0)} samples
+     * @param outOff offset to write the first output sample at
+     * @return number of output samples written
+     */
+    public int flush(int[] out, int outOff) {
+        long total = (inputCount * upFactor + downFactor - 1) / downFactor;
+        int count = 0;
+        while (outputCount < total) {
+            int n = buf.length - bufLen;
+            Arrays.fill(buf, bufLen, buf.length, 0f);
+            bufLen += n;
+            count += filter(out, outOff + count, total);
+        }
+        return count;
+    }
+
+    // Produces outputs while the history covers the filter (and below the limit), then drops the history consumed.
+    private int filter(int[] out, int outOff, long limit) {
+        int qStep = downFactor / upFactor;
+        int rStep = downFactor % upFactor;
+        int count = 0;
+        for (; pos + taps <= bufLen && outputCount < limit; count++, outputCount++) {
+            float sum;
+            if (!interpolated) {
+                float[] h = bank[phase];
+                sum = 0;
+                for (int j = 0; j < taps; j++) {
+                    sum += buf[pos + j] * h[j];
+                }
+            } else {
+                long scaled = (long) phase * phases;
+                float[] h0 = bank[(int) (scaled / upFactor)];
+                float[] h1 = bank[(int) (scaled / upFactor) + 1];
+                float sum0 = 0;
+                float sum1 = 0;
+                for (int j = 0; j < taps; j++) {
+                    sum0 += buf[pos + j] * h0[j];
+                    sum1 += buf[pos + j] * h1[j];
+                }
+                sum = sum0 + (sum1 - sum0) * ((float) (scaled % upFactor) / upFactor);
+            }
+            int val = Math.round(sum);
+            out[outOff + count] = Math.max(minValue, Math.min(val, maxValue));
+
+            pos += qStep;
+            phase += rStep;
+            if (phase >= upFactor) {
+                phase -= upFactor;
+                pos++;
+            }
+        }
+        int keep = Math.max(bufLen - pos, 0);
+        System.arraycopy(buf, Math.min(pos, bufLen), buf, 0, keep);
+        pos -= bufLen - keep;
+        bufLen = keep;
+        return count;
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    // Blackman window over [-1, 1]
+    private static double blackman(double x) {
+        if (Math.abs(x) >= 1) {
+            return 0;
+        }
+        return 0.42 + 0.5 * Math.cos(Math.PI * x) + 0.08 * Math.cos(2 * Math.PI * x);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
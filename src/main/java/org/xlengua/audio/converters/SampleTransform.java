@@ -0,0 +1,234 @@
+package org.xlengua.audio.converters;
+
+import java.util.Objects;
+
+/**
+ * Fused transformation of PCM samples from the source to the target format:
+ * channels reduction, sample rate conversion and sample depth scaling, in one pass over blocks of samples.
+ * <p>
+ * Mono target averages all the source channels (rounding down). The depth is scaled by bit shifting,
+ * or, when resampling, by the gain folded into the {@link Resampler resampler} filter.
+ * Like {@link Resampler}, it is stateful: after all the source samples are processed,
+ * {@link #flush(int[][], int) flush} gives the rest of the target samples.
+ */
+public final class SampleTransform {
+    // source frames mixed at most per step (when resampling)
+    private static final int CHUNK_SIZE = 4096;
+
+    private final int sourceChannels;
+    private final int sourceDepth;
+    private final int targetChannels;
+    private final int depthShift;
+    private final Resampler[] resamplers;
+    private final int[][] mixed;
+
+    /**
+     * Creates transformation between given formats.
+     *
+     * @param sourceChannels number of source channels
+     * @param sourceRate source sample rate in Hz
+     * @param sourceDepth source sample depth in [1..32]
+     * @param targetChannels number of target channels, either the same as source or 1
+     * @param targetRate target sample rate in Hz, in (0..source rate]
+     * @param targetDepth target sample depth in [1..32]
+     */
+    public SampleTransform(int sourceChannels, int sourceRate, int sourceDepth,
+                           int targetChannels, int targetRate, int targetDepth) {
+        if (sourceChannels < 1 || (targetChannels != sourceChannels && targetChannels != 1)
+                || sourceDepth < 1 || sourceDepth > 32 || targetDepth < 1 || targetDepth > 32
+                || targetRate <= 0 || targetRate > sourceRate) {
+            throw new IllegalArgumentException();
+        }
+        this.sourceChannels = sourceChannels;
+        this.sourceDepth = sourceDepth;
+        this.targetChannels = targetChannels;
+        this.depthShift = targetDepth - sourceDepth;
+
+        if (targetRate != sourceRate) {
+            this.resamplers = new Resampler[targetChannels];
+            for (int ch = 0; ch < targetChannels; ch++) {
+                this.resamplers[ch] = new Resampler(sourceRate, targetRate, targetDepth, Math.pow(2, depthShift));
+            }
+            this.mixed = new int[targetChannels][CHUNK_SIZE];
+        } else {
+            this.resamplers = null;
+            this.mixed = null;
+        }
+    }
+
+    /**
+     * Whether the sample rate is changed, so that the number of target samples
+     * differs from the number of source samples.
+     *
+     * @return true if resampling
+     */
+    public boolean isResampling() {
+        return resamplers != null;
+    }
+
+    /**
+     * Upper bound of the number of target samples produced per channel by a call of process or flush.
+     *
+     * @param inputLength number of source samples per channel
+     * @return maximum number of target samples per channel
+     */
+    public int maxOutputLength(int inputLength) {
+        return resamplers != null ? resamplers[0].maxOutputLength(inputLength) : inputLength;
+    }
+
+    /**
+     * Transforms planar source samples in[ : ][off : off + len].
+     *
+     * @param in source samples, a subarray per source channel
+     * @param off offset of the first source sample
+     * @param len number of source samples per channel
+     * @param out target samples, a subarray per target channel, each with room for
+     *            {@link #maxOutputLength(int) maxOutputLength(len)} samples
+     * @param outOff offset to write the first target sample at
+     * @return number of target samples written per channel
+     */
+    public int process(int[][] in, int off, int len, int[][] out, int outOff) {
+        Objects.requireNonNull(in);
+        if (in.length != sourceChannels || off < 0 || len < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (resamplers == null) {
+            mix(in, off, len, out, outOff, depthShift);
+            return len;
+        }
+
+        int count = 0;
+        for (int end = off + len; off < end; ) {
+            int n = Math.min(CHUNK_SIZE, end - off);
+            mix(in, off, n, mixed, 0, 0);
+            count += resample(n, out, outOff + count);
+            off += n;
+        }
+        return count;
+    }
+
+    /**
+     * Transforms source samples in the raw format (interleaved, little endian, unsigned if 8 bits),
+     * for source depth which is a multiple of 8.
+     *
+     * @param raw source bytes
+     * @param off offset of the first source byte
+     * @param numFrames number of source samples per channel
+     * @param out target samples, a subarray per target channel, each with room for
+     *            {@link #maxOutputLength(int) maxOutputLength(numFrames)} samples
+     * @param outOff offset to write the first target sample at
+     * @return number of target samples written per channel
+     */
+    public int process(byte[] raw, int off, int numFrames, int[][] out, int outOff) {
+        Objects.requireNonNull(raw);
+        if (sourceDepth % 8 != 0 || off < 0 || numFrames < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (resamplers == null) {
+            mix(raw, off, numFrames, out, outOff, depthShift);
+            return numFrames;
+        }
+
+        int frameSize = sourceChannels * (sourceDepth / 8);
+        int count = 0;
+        while (numFrames > 0) {
+            int n = Math.min(CHUNK_SIZE, numFrames);
+            mix(raw, off, n, mixed, 0, 0);
+            count += resample(n, out, outOff + count);
+            off += n * frameSize;
+            numFrames -= n;
+        }
+        return count;
+    }
+
+    /**
+     * Ends the stream, writing the rest of the target samples (if resampling).
+     *
+     * @param out target samples, a subarray per target channel, each with room for
+     *            {@link #maxOutputLength(int) maxOutputLength(0)} samples
+     * @param outOff offset to write the first target sample at
+     * @return number of target samples written per channel
+     */
+    public int flush(int[][] out, int outOff) {
+        int count = 0;
+        if (resamplers != null) {
+            for (int ch = 0; ch < targetChannels; ch++) {
+                count = resamplers[ch].flush(out[ch], outOff);
+            }
+        }
+        return count;
+    }
+
+    private int resample(int len, int[][] out, int outOff) {
+        int count = 0;
+        for (int ch = 0; ch < targetChannels; ch++) {
+            count = resamplers[ch].process(mixed[ch], 0, len, out[ch], outOff);
+        }
+        return count;
+    }
+
+    // Reduces channels of in[ : ][off : off + len] into out[ : ][outOff : outOff + len], shifted by the given bits.
+    private void mix(int[][] in, int off, int len, int[][] out, int outOff, int shift) {
+        if (targetChannels == sourceChannels) {
+            for (int ch = 0; ch < targetChannels; ch++) {
+                int[] src = in[ch];
+                int[] dest = out[ch];
+                for (int i = 0; i < len; i++) {
+                    dest[outOff + i] = scale(src[off + i], shift);
+                }
+            }
+        } else {
+            int[] dest = out[0];
+            for (int i = 0; i < len; i++) {
+                long sum = 0;
+                for (int ch = 0; ch < sourceChannels; ch++) {
+                    sum += in[ch][off + i];
+                }
+                dest[outOff + i] = scale((int) Math.floorDiv(sum, sourceChannels), shift);
+            }
+        }
+    }
+
+    // The same for raw bytes, starting at raw[off].
+    private void mix(byte[] raw, int off, int numFrames, int[][] out, int outOff, int shift) {
+        int bytesPerSample = sourceDepth / 8;
+        int frameSize = sourceChannels * bytesPerSample;
+        if (numFrames > (raw.length - off) / frameSize) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (targetChannels == sourceChannels) {
+            for (int ch = 0; ch < targetChannels; ch++) {
+                int[] dest = out[ch];
+                for (int i = 0, p = off + ch * bytesPerSample; i < numFrames; i++, p += frameSize) {
+                    dest[outOff + i] = scale(decode(raw, p, bytesPerSample), shift);
+                }
+            }
+        } else {
+            int[] dest = out[0];
+            for (int i = 0, p = off; i < numFrames; i++) {
+                long sum = 0;
+                for (int ch = 0; ch < sourceChannels; ch++, p += bytesPerSample) {
+                    sum += decode(raw, p, bytesPerSample);
+                }
+                dest[outOff + i] = scale((int) Math.floorDiv(sum, sourceChannels), shift);
+            }
+        }
+    }
+
+    // Reads one little-endian sample at raw[off]
+    private static int decode(byte[] raw, int off, int bytesPerSample) {
+        int val = 0;
+        for (int k = 0; k < bytesPerSample; k++) {
+            val |= (raw[off + k] & 0xFF) << (k * 8);
+        }
+        if (bytesPerSample == 1) {
+            return val - 128;
+        }
+        int unusedBits = 32 - bytesPerSample * 8;
+        return (val << unusedBits) >> unusedBits;
+    }
+
+    private static int scale(int val, int shift) {
+        return shift < 0 ? val >> -shift : val << shift;
+    }
+}
@@ -0,0 +1,175 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.decode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import io.nayuki.flac.common.StreamInfo;
+import io.nayuki.flac.encode.BitOutputStream;
+import io.nayuki.flac.encode.EncoderBenchmark;
+import io.nayuki.flac.encode.FlacEncoder;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions;
+
+
+/**
+ * Measures the decoding speed of FlacDecoder for each fixed prediction order and for LPC of various orders,
+ * on synthetic stereo 16-bit audio (the signal of EncoderBenchmark) encoded with only that order allowed,
+ * and for verbatim subframes and 24-bit audio (the same signal with 8 low bits of noise). Each stream
+ * is decoded with full verification, with DecodeOptions.TRUSTED, and with full verification
+ * by FlacDecoder.readAllAudio() in parallel on the common fork-join pool.
+ * Runs as a plain program (not a unit test).
+ * <p>Usage: java DecoderBenchmark [Seconds [Runs]]</p>
+ */
+public final class DecoderBenchmark {
+	
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int[][] samples = EncoderBenchmark.makeSamples(seconds * 44100);
+		
+		int[][] samples24 = new int[samples.length][samples[0].length];
+		Random rand = new Random(2);
+		for (int ch = 0; ch < samples.length; ch++) {
+			for (int i = 0; i < samples[ch].length; i++)
+				samples24[ch][i] = samples[ch][i] << 8 | rand.nextInt(256);
+		}
+		
+		int numRows = 5 + ORDERS.length + 4;
+		String[] names = new String[numRows];
+		byte[][] streams = new byte[numRows][];
+		int[][][] expects = new int[numRows][][];
+		for (int k = 0; k < 5; k++) {
+			names[k] = "fixed " + k;
+			streams[k] = encode(samples, 16, new SearchOptions(k, k, -1, -1, 0, 8));
+		}
+		for (int i = 0; i < ORDERS.length; i++) {
+			names[5 + i] = "LPC " + ORDERS[i];
+			streams[5 + i] = encode(samples, 16, new SearchOptions(-1, -1, ORDERS[i], ORDERS[i], 0, 8));
+		}
+		int row = 5 + ORDERS.length;
+		names[row] = "verbatim";
+		streams[row] = encode(samples, 16, VERBATIM);
+		Arrays.fill(expects, 0, row + 1, samples);
+		row++;
+		names[row] = "fixed 2 (24-bit)";
+		streams[row] = encode(samples24, 24, new SearchOptions(2, 2, -1, -1, 0, 8));
+		row++;
+		names[row] = "LPC 8 (24-bit)";
+		streams[row] = encode(samples24, 24, new SearchOptions(-1, -1, 8, 8, 0, 8));
+		row++;
+		names[row] = "verbatim (24-bit)";
+		streams[row] = encode(samples24, 24, VERBATIM);
+		Arrays.fill(expects, row - 2, row + 1, samples24);
+		for (int i = 0; i < numRows; i++) {  // Warm up
+			decode(streams[i], expects[i], DecodeOptions.FULL);
+			decode(streams[i], expects[i], DecodeOptions.TRUSTED);
+			decodeParallel(streams[i], expects[i]);
+		}
+		
+		System.out.println("| Predictor         | Full (x realtime) | Trusted (x realtime) | Parallel (x realtime) |");
+		System.out.println("|-------------------|------------------:|---------------------:|----------------------:|");
+		for (int i = 0; i < numRows; i++) {
+			long bestFull = Long.MAX_VALUE;
+			long bestTrusted = Long.MAX_VALUE;
+			long bestParallel = Long.MAX_VALUE;
+			for (int j = 0; j < runs; j++) {
+				long start = System.nanoTime();
+				decode(streams[i], expects[i], DecodeOptions.FULL);
+				long middle = System.nanoTime();
+				decode(streams[i], expects[i], DecodeOptions.TRUSTED);
+				long third = System.nanoTime();
+				decodeParallel(streams[i], expects[i]);
+				bestFull = Math.min(middle - start, bestFull);
+				bestTrusted = Math.min(third - middle, bestTrusted);
+				bestParallel = Math.min(System.nanoTime() - third, bestParallel);
+			}
+			System.out.printf("| %-17s | %17.1f | %20.1f | %21.1f |%n", names[i],
+				seconds / (bestFull / 1e9), seconds / (bestTrusted / 1e9), seconds / (bestParallel / 1e9));
+		}
+	}
+	
+	
+	private static byte[] encode(int[][] samples, int sampleDepth, SearchOptions opt) throws IOException {
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = 44100;
+		info.numChannels = samples.length;
+		info.sampleDepth = sampleDepth;
+		info.numSamples = samples[0].length;
+		info.md5Hash = new byte[16];
+		
+		// Encode the frames first, so that the stream info is complete when written before them
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		try (BitOutputStream out = new BitOutputStream(frames)) {
+			new FlacEncoder(info, samples, 4096, opt, out);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (BitOutputStream out = new BitOutputStream(bytes)) {
+			out.writeInt(32, 0x664C6143);
+			info.write(true, out);
+			out.flush();
+			frames.writeTo(bytes);
+		}
+		return bytes.toByteArray();
+	}
+	
+	
+	// Decodes the whole stream with the given options and checks that it matches the given samples.
+	private static void decode(byte[] flac, int[][] expect, DecodeOptions options) throws IOException {
+		try (FlacDecoder dec = new FlacDecoder(new BufferedInputStream(new ByteArrayInputStream(flac)), options)) {
+			while (dec.readAndHandleMetadataBlock() != null);
+			int[][] block = new int[expect.length][65536];
+			int pos = 0;
+			for (int n; (n = dec.readAudioBlock(block, 0)) > 0; pos += n) {
+				for (int ch = 0; ch < expect.length; ch++) {
+					if (block[ch][0] != expect[ch][pos] || block[ch][n - 1] != expect[ch][pos + n - 1])
+						throw new AssertionError("Decoded samples differ");
+				}
+			}
+			if (pos != expect[0].length)
+				throw new AssertionError("Decoded length differs");
+		}
+	}
+	
+	
+	// Decodes the whole stream at once in parallel and checks that it matches the given samples.
+	private static void decodeParallel(byte[] flac, int[][] expect) throws IOException {
+		try (FlacDecoder dec = new FlacDecoder(new BufferedInputStream(new ByteArrayInputStream(flac)))) {
+			while (dec.readAndHandleMetadataBlock() != null);
+			int[][] samples = new int[expect.length][expect[0].length];
+			if (dec.readAllAudio(samples, 0, ForkJoinPool.commonPool(), false) != expect[0].length || !Arrays.deepEquals(samples, expect))
+				throw new AssertionError("Decoded samples differ");
+		}
+	}
+	
+	
+	private static final int[] ORDERS = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 16, 32};
+	
+	// No predictor allowed, so that every subframe is verbatim (or constant).
+	private static final SearchOptions VERBATIM = new SearchOptions(-1, -1, -1, -1, 0, 8);
+	
+}
@@ -0,0 +1,100 @@
+/*
+ * FLAC library (Java)
+ *
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.nayuki.flac.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import io.nayuki.flac.common.StreamInfo;
+
+
+/**
+ * Measures how the frame encoding of FlacEncoder scales from 1 to N threads, and checks that
+ * the parallel output is byte-identical to the sequential one. Runs as a plain program (not a unit test).
+ * <p>Usage: java EncoderBenchmark [Seconds [MaxThreads]]</p>
+ */
+public final class EncoderBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int[][] samples = makeSamples(seconds * 44100);
+
+		encode(samples, null);  // Warm up
+		long start = System.nanoTime();
+		byte[] expect = encode(samples, null);
+		double baseTime = (System.nanoTime() - start) / 1e9;
+		System.out.printf("sequential: %7.3f s (%.1fx realtime)%n", baseTime, seconds / baseTime);
+
+		for (int threads = 1; threads <= maxThreads; threads = (threads < maxThreads ? Math.min(threads * 2, maxThreads) : maxThreads + 1)) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				encode(samples, pool);  // Warm up
+				start = System.nanoTime();
+				byte[] actual = encode(samples, pool);
+				double time = (System.nanoTime() - start) / 1e9;
+				if (!Arrays.equals(expect, actual))
+					throw new AssertionError("Output differs from sequential encoding");
+				System.out.printf("%3d threads: %7.3f s (%.1fx realtime, speedup %.2f)%n",
+					threads, time, seconds / time, baseTime / time);
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+
+	private static byte[] encode(int[][] samples, ForkJoinPool pool) throws IOException {
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = 44100;
+		info.numChannels = samples.length;
+		info.sampleDepth = 16;
+		info.numSamples = samples[0].length;
+		info.md5Hash = new byte[16];
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (BitOutputStream out = new BitOutputStream(bytes)) {
+			out.writeInt(32, 0x664C6143);
+			info.write(true, out);
+			new FlacEncoder(info, samples, 4096, SubframeEncoder.SearchOptions.SUBSET_BEST, out, pool);
+		}
+		return bytes.toByteArray();
+	}
+
+
+	// Returns stereo 16-bit audio of a few drifting tones with noise, which is neither trivial nor incompressible.
+	public static int[][] makeSamples(int len) {
+		Random rand = new Random(1);
+		int[][] result = new int[2][len];
+		for (int i = 0; i < len; i++) {
+			double t = i / 44100.0;
+			double tone = 6000 * Math.sin(2 * Math.PI * (220 + 20 * Math.sin(t)) * t)
+				+ 3000 * Math.sin(2 * Math.PI * 1760 * t) + 800 * rand.nextGaussian();
+			result[0][i] = (int)Math.round(tone);
+			result[1][i] = (int)Math.round(0.8 * tone + 400 * rand.nextGaussian());
+		}
+		return result;
+	}
+
+}
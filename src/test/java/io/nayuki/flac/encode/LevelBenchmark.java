@@ -0,0 +1,98 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import io.nayuki.flac.common.StreamInfo;
+
+
+/**
+ * Measures the speed and compression ratio of each compression level on synthetic stereo 16-bit audio
+ * (the signal of EncoderBenchmark), encoding sequentially, and of FastFlacEncoder in the last row.
+ * Runs as a plain program (not a unit test).
+ * The ratio is the size of the FLAC output over the size of the raw PCM samples.
+ * <p>Usage: java LevelBenchmark [Seconds [Runs]]</p>
+ */
+public final class LevelBenchmark {
+	
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int[][] samples = EncoderBenchmark.makeSamples(seconds * 44100);
+		long rawSize = (long)samples.length * samples[0].length * 2;
+		
+		for (int level = 0; level <= 8; level++)
+			encode(samples, CompressionLevel.of(level));  // Warm up all the code paths first
+		for (int i = 0; i < 10; i++)
+			encode(samples, null);  // Cheap, but only compiled fully after a few runs
+		
+		System.out.println("| Level | Block size | Speed (x realtime) |  Ratio |");
+		System.out.println("|------:|-----------:|-------------------:|-------:|");
+		for (int level = 0; level <= 8; level++) {
+			CompressionLevel lvl = CompressionLevel.of(level);
+			int size = 0;
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < runs; i++) {
+				long start = System.nanoTime();
+				size = encode(samples, lvl);
+				best = Math.min(System.nanoTime() - start, best);
+			}
+			System.out.printf("| %5d | %10d | %18.1f | %6.4f |%n", level, lvl.blockSize, seconds / (best / 1e9), (double)size / rawSize);
+		}
+		int size = 0;
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			size = encode(samples, null);
+			best = Math.min(System.nanoTime() - start, best);
+		}
+		System.out.printf("|  fast | %10d | %18.1f | %6.4f |%n", FAST_BLOCK_SIZE, seconds / (best / 1e9), (double)size / rawSize);
+	}
+	
+	
+	// Encodes with the given level, or with FastFlacEncoder if it is null.
+	private static int encode(int[][] samples, CompressionLevel level) throws IOException {
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = 44100;
+		info.numChannels = samples.length;
+		info.sampleDepth = 16;
+		info.numSamples = samples[0].length;
+		info.md5Hash = new byte[16];
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (BitOutputStream out = new BitOutputStream(bytes)) {
+			out.writeInt(32, 0x664C6143);
+			info.write(true, out);
+			if (level != null)
+				new FlacEncoder(info, samples, level.blockSize, level.searchOptions, out);
+			else
+				new FastFlacEncoder(info, samples, FAST_BLOCK_SIZE, out);
+		}
+		return bytes.size();
+	}
+	
+	
+	private static final int FAST_BLOCK_SIZE = 4096;
+	
+}
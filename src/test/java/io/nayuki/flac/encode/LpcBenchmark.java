@@ -0,0 +1,80 @@
+/* 
+ * FLAC library (Java)
+ * 
+ * Copyright (c) Project Nayuki
+ * https://www.nayuki.io/page/flac-library-java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program (see COPYING.txt and COPYING.LESSER.txt).
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package io.nayuki.flac.encode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import io.nayuki.flac.common.StreamInfo;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions.LpcMethod;
+import io.nayuki.flac.encode.SubframeEncoder.SearchOptions.Window;
+
+
+/**
+ * Compares the encoding speed and compression of the LPC coefficient methods under the LAX_BEST
+ * search ranges: the covariance method, and the autocorrelation method with each window.
+ * Runs as a plain program (not a unit test).
+ * <p>Usage: java LpcBenchmark [Seconds]</p>
+ */
+public final class LpcBenchmark {
+	
+	public static void main(String[] args) throws IOException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+		int[][] samples = EncoderBenchmark.makeSamples(seconds * 44100);
+		SearchOptions base = SearchOptions.LAX_BEST;
+		
+		run("covariance", base, samples, seconds);
+		for (Window window : Window.values()) {
+			SearchOptions opt = new SearchOptions(base.minFixedOrder, base.maxFixedOrder, base.minLpcOrder, base.maxLpcOrder,
+				base.lpcRoundVariables, base.maxRiceOrder, LpcMethod.AUTOCORRELATION, window);
+			run("autocorrelation, " + window.name().toLowerCase(), opt, samples, seconds);
+		}
+	}
+	
+	
+	private static void run(String name, SearchOptions opt, int[][] samples, int seconds) throws IOException {
+		encode(samples, opt);  // Warm up
+		long start = System.nanoTime();
+		int size = encode(samples, opt);
+		double time = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-28s %7.3f s (%5.1fx realtime), %,d bytes (%.2f%% of PCM)%n",
+			name + ":", time, seconds / time, size, size * 100.0 / (samples.length * samples[0].length * 2));
+	}
+	
+	
+	private static int encode(int[][] samples, SearchOptions opt) throws IOException {
+		StreamInfo info = new StreamInfo();
+		info.sampleRate = 44100;
+		info.numChannels = samples.length;
+		info.sampleDepth = 16;
+		info.numSamples = samples[0].length;
+		info.md5Hash = new byte[16];
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (BitOutputStream out = new BitOutputStream(bytes)) {
+			new FlacEncoder(info, samples, 4096, opt, out);
+		}
+		return bytes.size();
+	}
+	
+}
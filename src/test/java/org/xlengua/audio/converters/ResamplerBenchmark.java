@@ -0,0 +1,51 @@
+package org.xlengua.audio.converters;
+
+import java.util.Random;
+
+/**
+ * Measures the speed of {@link Resampler} for the speech pipeline rates, in multiples of realtime.
+ * Run as a plain program (not a unit test), e.g. from the IDE or with
+ * {@code java -cp target/classes:target/test-classes org.xlengua.audio.converters.ResamplerBenchmark}.
+ */
+public final class ResamplerBenchmark {
+    private static final int SECONDS = 60;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        run(44_100, 16_000);
+        run(48_000, 16_000);
+        run(44_100, 22_050);
+    }
+
+    private static void run(int sourceRate, int targetRate) {
+        // one channel of 16-bit audio: a few tones with some noise
+        int[] input = new int[SECONDS * sourceRate];
+        Random random = new Random(1);
+        for (int i = 0; i < input.length; i++) {
+            double t = (double) i / sourceRate;
+            double val = 8000 * Math.sin(2 * Math.PI * 440 * t) + 4000 * Math.sin(2 * Math.PI * 3000 * t)
+                    + 2000 * Math.sin(2 * Math.PI * 11_000 * t) + 500 * random.nextGaussian();
+            input[i] = (int) Math.round(val);
+        }
+
+        Resampler resampler = new Resampler(sourceRate, targetRate, 16);
+        int[] output = new int[resampler.maxOutputLength(BLOCK_SIZE)];
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int run = 0; run < RUNS; run++) {
+            resampler.reset();
+            long start = System.nanoTime();
+            for (int pos = 0; pos < input.length; pos += BLOCK_SIZE) {
+                int n = resampler.process(input, pos, Math.min(BLOCK_SIZE, input.length - pos), output, 0);
+                checksum += output[n / 2];
+            }
+            resampler.flush(output, 0);
+            best = Math.min(System.nanoTime() - start, best);
+        }
+
+        double seconds = best / 1e9;
+        System.out.printf("%6d -> %6d Hz: %d s of audio in %.3f s, %.0fx realtime (checksum %d)%n",
+                sourceRate, targetRate, SECONDS, seconds, SECONDS / seconds, checksum);
+    }
+}